@@ -0,0 +1,69 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the delivery check and of merging a delivered message into the state of a process.
+ *
+ * The merges run in the steady state where the local state already dominates the message, so they
+ * measure the comparisons done for every delivery and must not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CausalStateBenchmark {
+
+    private final static MethodHandle IS_DELIVERY_READY =
+            Lab1.method(Fixture.STATE, "isDeliveryReady", boolean.class, Fixture.MESSAGE);
+
+    private final static MethodHandle MERGE_BUFFER =
+            Lab1.method(Fixture.STATE, "mergeBuffer", void.class, Map.class);
+
+    private final static MethodHandle MERGE_CLOCKS =
+            Lab1.method(Fixture.STATE, "mergeClocks", void.class, Fixture.CLOCK);
+
+    @Param({"3", "100", "2000"})
+    private int processNum;
+
+    @Param({"0.1", "1.0"})
+    private double bufferFill;
+
+    private Object state;
+
+    private Object message;
+
+    private Object buffer;
+
+    private Object clock;
+
+    @Setup
+    public void setup(){
+        Fixture fixture = new Fixture(processNum, bufferFill);
+        state = fixture.state;
+        message = fixture.message;
+        buffer = fixture.buffer;
+        clock = fixture.clock;
+    }
+
+    @Benchmark
+    public boolean isDeliveryReady() throws Throwable{
+        return (boolean) IS_DELIVERY_READY.invokeExact(state, message);
+    }
+
+    @Benchmark
+    public void mergeBuffer() throws Throwable{
+        MERGE_BUFFER.invokeExact(state, buffer);
+    }
+
+    @Benchmark
+    public void mergeClocks() throws Throwable{
+        MERGE_CLOCKS.invokeExact(state, clock);
+    }
+}
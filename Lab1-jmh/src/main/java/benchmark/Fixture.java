@@ -0,0 +1,68 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A process of Lab1 with a filled local buffer, and a deliverable message to it.
+ *
+ * All clock entries are random, the buffer of the message holds bufferFill * processNum entries,
+ * including the entry of the destination which is dominated by the timestamp of the process.
+ */
+final class Fixture {
+
+    final static Class<?> MESSAGE = Lab1.type("Message");
+
+    final static Class<?> CLOCK = Lab1.type("VectorClock");
+
+    final static Class<?> STATE = Lab1.type("CausalState");
+
+    private final static int SEED = 42;
+
+    /**
+     * CausalState of process 0
+     */
+    final Object state;
+
+    /**
+     * Message from process 1 to process 0
+     */
+    final Object message;
+
+    /**
+     * Buffer and timestamp piggybacked on the message
+     */
+    final Map<Integer, Object> buffer;
+
+    final Object clock;
+
+    Fixture(int processNum, double bufferFill){
+        Random random = new Random(SEED);
+
+        state = Lab1.create(STATE, new Class<?>[]{int.class, int.class}, processNum, 0);
+        Lab1.invoke(state, "mergeClocks", new Class<?>[]{CLOCK}, clock(processNum, random, 1000, 2000));
+
+        clock = clock(processNum, random, 0, 2000);
+        buffer = new HashMap<Integer, Object>();
+        buffer.put(0, clock(processNum, random, 0, 1000));
+        int entries = (int) Math.round(bufferFill * processNum);
+        for(int k = 1; k < entries; k ++)
+            buffer.put(k, clock(processNum, random, 0, 2000));
+
+        message = Lab1.create(MESSAGE, new Class<?>[]{int.class, int.class, int.class}, 1, 0, 0);
+        Lab1.invoke(message, "setContent", new Class<?>[]{String.class}, "benchmark");
+        Lab1.invoke(message, "setTs", new Class<?>[]{CLOCK}, clock);
+        Lab1.invoke(message, "setBuffer", new Class<?>[]{Map.class}, buffer);
+
+        // the local buffer already knows the entries of the message, as after a long run
+        Lab1.invoke(state, "mergeBuffer", new Class<?>[]{Map.class}, buffer);
+    }
+
+    private static Object clock(int processNum, Random random, int from, int to){
+        Object clock = Lab1.create(CLOCK, new Class<?>[]{int.class}, processNum);
+        for(int i = 0; i < processNum; i ++)
+            Lab1.invoke(clock, "set", new Class<?>[]{int.class, int.class}, i, from + random.nextInt(to - from));
+        return clock;
+    }
+}
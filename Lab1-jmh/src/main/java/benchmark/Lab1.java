@@ -0,0 +1,67 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+
+/**
+ * Access to the classes of Lab1, which live in the default package.
+ *
+ * JMH only accepts benchmarks in a named package, and a named package could not refer to the
+ * default package, so the benchmarks call Lab1 through method handles. A handle held in a static
+ * final field is inlined by the JIT, the call costs the same as a direct one.
+ */
+final class Lab1 {
+
+    private Lab1(){
+    }
+
+    static Class<?> type(String name){
+        try{
+            return Class.forName(name);
+        }catch (ClassNotFoundException e){
+            throw new IllegalStateException("Lab1 class " + name + " not found", e);
+        }
+    }
+
+    /**
+     * Find a public method, with the receiver and all parameters and return types of Lab1 seen as Object.
+     * Primitive parameter and return types are kept, so calling the handle does not box.
+     * @param owner class declaring the method
+     * @param name name of the method
+     * @param returnType return type of the method
+     * @param parameterTypes parameter types of the method
+     */
+    static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes){
+        try{
+            MethodHandle handle = MethodHandles.publicLookup().findVirtual(owner, name,
+                    MethodType.methodType(returnType, parameterTypes));
+            MethodType type = handle.type();
+            for(int i = 0; i < type.parameterCount(); i ++){
+                if(!type.parameterType(i).isPrimitive())
+                    type = type.changeParameterType(i, Object.class);
+            }
+            return handle.asType(type.changeReturnType(returnType.isPrimitive() ? returnType : Object.class));
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("Lab1 method " + owner.getName() + "." + name + " not found", e);
+        }
+    }
+
+    static Object create(Class<?> owner, Class<?>[] parameterTypes, Object... args){
+        try{
+            Constructor<?> constructor = owner.getConstructor(parameterTypes);
+            return constructor.newInstance(args);
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("Lab1 constructor of " + owner.getName() + " failed", e);
+        }
+    }
+
+    static Object invoke(Object target, String name, Class<?>[] parameterTypes, Object... args){
+        try{
+            return target.getClass().getMethod(name, parameterTypes).invoke(target, args);
+        }catch (ReflectiveOperationException e){
+            throw new IllegalStateException("Lab1 method " + name + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package benchmark;
+
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of many processes in one JVM, connected by a LocalTransport.
+ *
+ * Random processes send messages with random delays to random destinations, then the benchmark waits
+ * until every message is delivered. All processes share one delay scheduler and one pool running
+ * their event loops. One operation sends and delivers all messages over a fresh set of processes.
+ * Every timestamp has an entry per process, so large systems need a large heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class LocalTransportBenchmark {
+
+    private final static Class<?> PROCESS = Lab1.type("DA_Schiper_Eggli_Sandoz");
+
+    private final static Class<?> TRANSPORT = Lab1.type("LocalTransport");
+
+    private final static Class<?> SCHEDULER = Lab1.type("DelayScheduler");
+
+    private final static Class<?> METRICS = Lab1.type("SESMetrics");
+
+    private final static MethodHandle SEND =
+            Lab1.method(PROCESS, "send", void.class, int.class, Fixture.MESSAGE);
+
+    private final static MethodHandle GET_METRICS =
+            Lab1.method(PROCESS, "getMetrics", METRICS);
+
+    private final static MethodHandle GET_DELIVERED_COUNT =
+            Lab1.method(METRICS, "getDeliveredCount", long.class);
+
+    private final static int MAX_DELAY = 10;
+
+    private final static long TIMEOUT = 120000;
+
+    @Param({"1000", "10000"})
+    private int processNum;
+
+    @Param({"20000"})
+    private int messageNum;
+
+    private Object scheduler;
+
+    private ExecutorService executor;
+
+    private Object[] processes;
+
+    private Object[] messages;
+
+    private int[] sources;
+
+    private int[] destinations;
+
+    @Setup(Level.Trial)
+    public void startThreads(){
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        scheduler = Lab1.create(SCHEDULER, new Class<?>[]{int.class}, threads);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SES-pool-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Setup(Level.Iteration)
+    public void createProcesses(){
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("history_size", 16);
+
+        Object transport = Lab1.create(TRANSPORT, new Class<?>[]{int.class}, processNum);
+        processes = new Object[processNum];
+        for(int i = 0; i < processNum; i ++){
+            processes[i] = Lab1.create(PROCESS, new Class<?>[]{int.class, int.class, Configuration.class,
+                    Lab1.type("Transport"), SCHEDULER, Executor.class}, processNum, i, settings, transport, scheduler, executor);
+            Lab1.invoke(transport, "register", new Class<?>[]{int.class, PROCESS}, i, processes[i]);
+        }
+
+        Random random = new Random(1);
+        messages = new Object[messageNum];
+        sources = new int[messageNum];
+        destinations = new int[messageNum];
+        for(int k = 0; k < messageNum; k ++){
+            int src = random.nextInt(processNum);
+            int dest = random.nextInt(processNum - 1);
+            if(dest >= src)
+                dest ++;
+
+            sources[k] = src;
+            destinations[k] = dest;
+            messages[k] = Lab1.create(Fixture.MESSAGE, new Class<?>[]{int.class, int.class, int.class},
+                    src, dest, random.nextInt(MAX_DELAY));
+            Lab1.invoke(messages[k], "setContent", new Class<?>[]{String.class}, "m" + k);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopThreads(){
+        Lab1.invoke(scheduler, "shutdown", new Class<?>[0]);
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long deliverAll() throws Throwable{
+        for(int k = 0; k < messageNum; k ++)
+            SEND.invokeExact(processes[sources[k]], destinations[k], messages[k]);
+
+        long delivered = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(delivered < messageNum && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+            delivered = 0;
+            for(Object process: processes)
+                delivered += (long) GET_DELIVERED_COUNT.invokeExact((Object) GET_METRICS.invokeExact(process));
+        }
+
+        if(delivered != messageNum)
+            throw new IllegalStateException("delivered " + delivered + " of " + messageNum + " messages");
+        return delivered;
+    }
+}
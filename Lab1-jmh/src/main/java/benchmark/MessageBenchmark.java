@@ -0,0 +1,134 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of stamping a message with the local buffer and of sending it through Java serialization, as RMI does.
+ * The message writes itself in its compact format, the *Default benchmarks write the same message in the
+ * boxed format Message had before, with default Java serialization, for comparison. Run with -prof gc to see the bytes allocated per message,
+ * and WireSize for the bytes on the wire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    private final static MethodHandle SET_BUFFER =
+            Lab1.method(Fixture.MESSAGE, "setBuffer", void.class, Map.class);
+
+    @Param({"3", "100", "2000"})
+    private int processNum;
+
+    @Param({"0.1", "1.0"})
+    private double bufferFill;
+
+    private Object message;
+
+    private Object buffer;
+
+    private byte[] serialized;
+
+    private Object fields;
+
+    private byte[] serializedFields;
+
+    private ByteArrayOutputStream bytes;
+
+    @Setup
+    public void setup() throws IOException{
+        Fixture fixture = new Fixture(processNum, bufferFill);
+        message = fixture.message;
+        buffer = fixture.buffer;
+        bytes = new ByteArrayOutputStream();
+        serialized = serialize();
+        fields = defaultFields(message);
+        serializedFields = serializeDefault();
+    }
+
+    @Benchmark
+    public void setBuffer() throws Throwable{
+        SET_BUFFER.invokeExact(message, buffer);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException{
+        return write(message);
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException{
+        return read(serialized);
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException, ClassNotFoundException{
+        return read(serialize());
+    }
+
+    @Benchmark
+    public byte[] serializeDefault() throws IOException{
+        return write(fields);
+    }
+
+    @Benchmark
+    public Object deserializeDefault() throws IOException, ClassNotFoundException{
+        return read(serializedFields);
+    }
+
+    @Benchmark
+    public Object roundTripDefault() throws IOException, ClassNotFoundException{
+        return read(serializeDefault());
+    }
+
+    /**
+     * The fields of a message in the format Message had before its compact format: default Java serialization
+     * of the ids, the delay and the content, the timestamp as a List<Integer> and the buffer as a
+     * Map<Integer, List<Integer>>, so an object per field, per buffer key and per clock entry.
+     */
+    static Object defaultFields(Object message){
+        Map<?, ?> buffer = (Map<?, ?>) Lab1.invoke(message, "getBuffer", new Class<?>[0]);
+        HashMap<Integer, List<Integer>> boxedBuffer = new HashMap<Integer, List<Integer>>();
+        for(Map.Entry<?, ?> entry: buffer.entrySet())
+            boxedBuffer.put((Integer) entry.getKey(), boxed(entry.getValue()));
+
+        return new Object[]{
+                Lab1.invoke(message, "getDestId", new Class<?>[0]),
+                Lab1.invoke(message, "getSrcId", new Class<?>[0]),
+                Lab1.invoke(message, "getDelay", new Class<?>[0]),
+                Lab1.invoke(message, "getContent", new Class<?>[0]),
+                boxed(Lab1.invoke(message, "getTs", new Class<?>[0])),
+                boxedBuffer};
+    }
+
+    private static List<Integer> boxed(Object clock){
+        int[] entries = (int[]) Lab1.invoke(clock, "entries", new Class<?>[0]);
+        List<Integer> list = new ArrayList<Integer>(entries.length);
+        for(int entry: entries)
+            list.add(entry);
+        return list;
+    }
+
+    private byte[] write(Object object) throws IOException{
+        bytes.reset();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object read(byte[] serialized) throws IOException, ClassNotFoundException{
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        return in.readObject();
+    }
+}
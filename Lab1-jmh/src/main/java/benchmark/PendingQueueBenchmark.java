@@ -0,0 +1,117 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of draining a pending backlog after the message blocking it arrives.
+ *
+ * P1 sends a chain of messages m1 ... mN to P0, they arrive in reverse order, so m2 ... mN
+ * are postponed until m1 is received. One operation postpones and delivers the whole chain;
+ * divided by the backlog, the time per message should stay flat when the backlog grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PendingQueueBenchmark {
+
+    private final static int PROCESS_NUM = 3;
+
+    private final static Class<?> QUEUE = Lab1.type("PendingQueue");
+
+    private final static MethodHandle ADD =
+            Lab1.method(QUEUE, "add", void.class, Fixture.MESSAGE, Fixture.CLOCK);
+
+    private final static MethodHandle ADVANCE =
+            Lab1.method(QUEUE, "advance", void.class, int.class, Fixture.CLOCK);
+
+    private final static MethodHandle POLL =
+            Lab1.method(QUEUE, "poll", Fixture.MESSAGE);
+
+    private final static MethodHandle IS_EMPTY =
+            Lab1.method(QUEUE, "isEmpty", boolean.class);
+
+    private final static MethodHandle GET_TS =
+            Lab1.method(Fixture.MESSAGE, "getTs", Fixture.CLOCK);
+
+    private final static MethodHandle GET =
+            Lab1.method(Fixture.CLOCK, "get", int.class, int.class);
+
+    private final static MethodHandle SET =
+            Lab1.method(Fixture.CLOCK, "set", void.class, int.class, int.class);
+
+    private final static MethodHandle INCREMENT =
+            Lab1.method(Fixture.CLOCK, "increment", void.class, int.class);
+
+    @Param({"1000", "10000", "100000"})
+    private int backlog;
+
+    /**
+     * Message k carries P1's timestamp k and requires P0 to have delivered message k-1
+     */
+    private Object[] chain;
+
+    private Object pending;
+
+    private Object ts;
+
+    @Setup(Level.Trial)
+    public void createChain(){
+        chain = new Object[backlog];
+        for(int k = 1; k <= backlog; k ++){
+            Object message = Lab1.create(Fixture.MESSAGE, new Class<?>[]{int.class, int.class, int.class}, 1, 0, 0);
+            Lab1.invoke(message, "setContent", new Class<?>[]{String.class}, "message " + k);
+            Lab1.invoke(message, "setTs", new Class<?>[]{Fixture.CLOCK}, clock(k));
+
+            if(k > 1){
+                Map<Integer, Object> buffer = new HashMap<Integer, Object>();
+                buffer.put(0, clock(k - 1));
+                Lab1.invoke(message, "setBuffer", new Class<?>[]{Map.class}, buffer);
+            }
+            chain[k - 1] = message;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createQueue(){
+        pending = Lab1.create(QUEUE, new Class<?>[]{int.class, int.class}, PROCESS_NUM, 0);
+        ts = Lab1.create(Fixture.CLOCK, new Class<?>[]{int.class}, PROCESS_NUM);
+    }
+
+    @Benchmark
+    public int drain() throws Throwable{
+        for(int k = backlog - 1; k > 0; k --)
+            ADD.invokeExact(pending, chain[k], ts);
+
+        int delivered = deliver(chain[0]);
+        Object temp;
+        while((temp = (Object) POLL.invokeExact(pending)) != null)
+            delivered += deliver(temp);
+
+        if(delivered != backlog || !(boolean) IS_EMPTY.invokeExact(pending))
+            throw new IllegalStateException("delivered " + delivered + " of " + backlog);
+        return delivered;
+    }
+
+    private int deliver(Object message) throws Throwable{
+        INCREMENT.invokeExact(ts, 0);
+        Object clock = (Object) GET_TS.invokeExact(message);
+        SET.invokeExact(ts, 1, Math.max((int) GET.invokeExact(ts, 1), (int) GET.invokeExact(clock, 1)));
+        ADVANCE.invokeExact(pending, 0, ts);
+        ADVANCE.invokeExact(pending, 1, ts);
+        return 1;
+    }
+
+    private static Object clock(int value){
+        Object clock = Lab1.create(Fixture.CLOCK, new Class<?>[]{int.class}, PROCESS_NUM);
+        Lab1.invoke(clock, "set", new Class<?>[]{int.class, int.class}, 1, value);
+        return clock;
+    }
+}
@@ -0,0 +1,54 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+
+/**
+ * Bytes on the wire per message, in the compact format of the message and in the boxed format it replaced,
+ * for the parameters of MessageBenchmark. Also checks that every message survives a round trip.
+ *
+ * java -cp target/benchmarks.jar benchmark.WireSize
+ */
+public class WireSize {
+
+    public static void main(String args[]) throws IOException, ClassNotFoundException{
+        int[] processNums = {3, 100, 2000};
+        double[] bufferFills = {0.1, 1.0};
+
+        System.out.println("processNum  bufferFill  compact  default  ratio");
+        for(int processNum: processNums){
+            for(double bufferFill: bufferFills){
+                Object message = new Fixture(processNum, bufferFill).message;
+                byte[] compact = serialize(message);
+                byte[] standard = serialize(MessageBenchmark.defaultFields(message));
+
+                Object copy = new ObjectInputStream(new ByteArrayInputStream(compact)).readObject();
+                if(!same(message, copy))
+                    throw new IllegalStateException("Round trip changed the message of " + processNum + " processes");
+
+                System.out.println(String.format("%10d  %10.1f  %7d  %7d  %5.1f",
+                        processNum, bufferFill, compact.length, standard.length, (double) standard.length / compact.length));
+            }
+        }
+    }
+
+    private static byte[] serialize(Object object) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static boolean same(Object message, Object copy){
+        Map<?, ?> buffer = (Map<?, ?>) Lab1.invoke(message, "getBuffer", new Class<?>[0]);
+        return buffer.equals(Lab1.invoke(copy, "getBuffer", new Class<?>[0])) &&
+                Lab1.invoke(message, "getTs", new Class<?>[0]).equals(Lab1.invoke(copy, "getTs", new Class<?>[0])) &&
+                Lab1.invoke(message, "getContent", new Class<?>[0]).equals(Lab1.invoke(copy, "getContent", new Class<?>[0])) &&
+                Lab1.invoke(message, "getSrcId", new Class<?>[0]).equals(Lab1.invoke(copy, "getSrcId", new Class<?>[0]));
+    }
+}
@@ -0,0 +1,12 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a send when a destination already holds as many undelivered messages of the sender
+ * as flow control allows and flow_control = reject. Over RMI it is the cause of a ServerException.
+ */
+public class BacklogExceededException extends RemoteException {
+
+    public BacklogExceededException(String message){
+        super(message);
+    }
+}
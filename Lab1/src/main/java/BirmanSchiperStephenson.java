@@ -0,0 +1,134 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Causal broadcast engine following Birman, Schiper and Stephenson.
+ *
+ * Entry k of the clock counts the broadcasts of process k delivered by this process. A broadcast m
+ * from process j is delivered when it is the next broadcast of j, i.e. vt[j] = m.ts[j] - 1,
+ * and all broadcasts it depends on were delivered, i.e. vt[k] >= m.ts[k] for every k != j.
+ * Broadcasts of one process are delivered in order, so only the earliest pending broadcast of
+ * every process needs to be checked after a delivery.
+ */
+public class BirmanSchiperStephenson implements Serializable {
+
+    /**
+     * Orders the broadcasts of one process by their number, serializable so the engine could be saved by a snapshot.
+     */
+    private static class BySequence implements Comparator<Message>, Serializable {
+        private int src;
+
+        private BySequence(int src){
+            this.src = src;
+        }
+
+        public int compare(Message m1, Message m2) {
+            return Integer.compare(m1.getTs().get(src), m2.getTs().get(src));
+        }
+    }
+
+    private int index;
+
+    private VectorClock vt;
+
+    /**
+     * Per source process, the pending broadcasts ordered by their number
+     */
+    private Map<Integer, PriorityQueue<Message>> pending;
+
+    private int pendingSize;
+
+    public BirmanSchiperStephenson(int processNum, int index){
+        this.index = index;
+        vt = new VectorClock(processNum);
+
+        pending = new HashMap<Integer, PriorityQueue<Message>>();
+    }
+
+    /**
+     * Stamp a new broadcast of this process, it counts as delivered by this process right away.
+     * @param message message to broadcast
+     */
+    public void stamp(Message message){
+        vt.increment(index);
+        message.setTs(vt);
+        message.setBroadcast(true);
+    }
+
+    /**
+     * Receive a broadcast of another process.
+     * @param message message to receive
+     * @return the broadcasts which could be delivered now, in delivery order
+     */
+    public List<Message> receive(Message message){
+        List<Message> delivered = new ArrayList<Message>();
+
+        if(!isDeliveryReady(message)){
+            PriorityQueue<Message> queue = pending.get(message.getSrcId());
+            if(queue == null){
+                queue = new PriorityQueue<Message>(11, new BySequence(message.getSrcId()));
+                pending.put(message.getSrcId(), queue);
+            }
+            queue.add(message);
+            pendingSize ++;
+            return delivered;
+        }
+
+        deliver(message, delivered);
+
+        // every delivery may unblock the earliest pending broadcast of any process
+        boolean progress = true;
+        while(progress){
+            progress = false;
+            for(PriorityQueue<Message> queue: pending.values()){
+                Message head = queue.peek();
+                if(head != null && isDeliveryReady(head)){
+                    queue.poll();
+                    pendingSize --;
+                    deliver(head, delivered);
+                    progress = true;
+                }
+            }
+        }
+
+        return delivered;
+    }
+
+    private boolean isDeliveryReady(Message message){
+        VectorClock messageClock = message.getTs();
+        int src = message.getSrcId();
+
+        if(vt.get(src) != messageClock.get(src) - 1)
+            return false;
+
+        for(int k = 0; k < vt.size(); k ++){
+            if(k != src && vt.get(k) < messageClock.get(k))
+                return false;
+        }
+        return true;
+    }
+
+    private void deliver(Message message, List<Message> delivered){
+        vt.increment(message.getSrcId());
+        delivered.add(message);
+    }
+
+    public int getPendingSize(){
+        return pendingSize;
+    }
+
+    public VectorClock getClock(){
+        return vt;
+    }
+
+    public void clear(){
+        vt.reset();
+        pending.clear();
+        pendingSize = 0;
+    }
+}
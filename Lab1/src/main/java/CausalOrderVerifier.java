@@ -0,0 +1,486 @@
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline check that the processes of a run delivered their messages in causal order, from the traces
+ * written with trace_dir in url.properties.
+ *
+ * Every send and delivery increases the clock entry of its process, so the entry of the sender in the
+ * timestamp of a message is its id, and a message m' from j happened before a message m iff
+ * m.ts[j] >= id(m'). A process must thus deliver m only after all messages to it from every j with an
+ * id up to m.ts[j], and those of the sender of m with a smaller id. Broadcasts of the Birman-Schiper-Stephenson
+ * engine are checked against their own clocks in the same way.
+ *
+ * The traces do not have to fit in memory. A first pass streams the trace of every sender and spills to
+ * a work directory the timestamp of each message, ordered by id, and the ids of its messages grouped by
+ * destination. The second pass streams the deliveries of every destination and looks the messages up
+ * in the memory-mapped spill files. Both passes run in parallel on a fork-join pool, the first per sender,
+ * the second per destination.
+ *
+ * The traces must cover one run without clear and without restart, and are only complete if no event was dropped.
+ * java CausalOrderVerifier [-work dir] [-threads n] trace/trace-0.bin trace/trace-1.bin ...
+ */
+public class CausalOrderVerifier {
+
+    final static Logger logger = Logger.getLogger(CausalOrderVerifier.class);
+
+    private static final int MAX_REPORTED = 20;
+
+    /**
+     * Messages sent by one process, spilled to the work directory
+     */
+    private static class Sender {
+        private int process;
+        private String path;
+
+        /**
+         * Number of entries of the timestamps
+         */
+        private int clockSize;
+
+        /**
+         * Per distinct message its id followed by its timestamp, ordered by id
+         */
+        private MappedInts clocks;
+        private long clockCount;
+
+        /**
+         * Ids of the messages to every destination, the ids to destination d are between offsets[d] and offsets[d + 1]
+         */
+        private MappedInts ids;
+        private long[] offsets;
+
+        private Sender(int process, String path){
+            this.process = process;
+            this.path = path;
+        }
+
+        /**
+         * @return the record of a message in clocks, -1 if it was not sent
+         */
+        private long findClock(int id){
+            long low = 0, high = clockCount - 1;
+            while(low <= high){
+                long middle = (low + high) >>> 1;
+                int value = clocks.get(middle * (clockSize + 1));
+                if(value < id)
+                    low = middle + 1;
+                else if(value > id)
+                    high = middle - 1;
+                else
+                    return middle;
+            }
+            return -1;
+        }
+
+        /**
+         * @return number of messages to a destination with an id up to bound
+         */
+        private int countUpTo(int destId, int bound){
+            if(destId >= offsets.length - 1)
+                return 0;
+
+            long low = offsets[destId], high = offsets[destId + 1];
+            long start = low;
+            while(low < high){
+                long middle = (low + high) >>> 1;
+                if(ids.get(middle) <= bound)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return (int) (low - start);
+        }
+
+        /**
+         * @return id of the k-th message to a destination
+         */
+        private int idAt(int destId, int k){
+            return ids.get(offsets[destId] + k);
+        }
+
+        private int countTo(int destId){
+            return destId >= offsets.length - 1 ? 0 : (int) (offsets[destId + 1] - offsets[destId]);
+        }
+    }
+
+    /**
+     * A file of ints mapped in chunks, as one mapping is limited to 2 GB.
+     */
+    private static class MappedInts {
+        private static final int CHUNK = 1 << 28;
+
+        private MappedByteBuffer[] chunks;
+
+        private MappedInts(File file, long size, boolean write) throws IOException{
+            RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r");
+            try{
+                if(write)
+                    raf.setLength(size * 4);
+                chunks = new MappedByteBuffer[(int) ((size + CHUNK - 1) / CHUNK)];
+                for(int i = 0; i < chunks.length; i ++){
+                    long start = (long) i * CHUNK;
+                    chunks[i] = raf.getChannel().map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                            start * 4, Math.min(CHUNK, size - start) * 4);
+                }
+            }finally {
+                raf.close();
+            }
+        }
+
+        private int get(long i){
+            return chunks[(int) (i / CHUNK)].getInt((int) (i % CHUNK) * 4);
+        }
+
+        private void put(long i, int value){
+            chunks[(int) (i / CHUNK)].putInt((int) (i % CHUNK) * 4, value);
+        }
+    }
+
+    private File workDir;
+
+    private int threads;
+
+    private Map<Integer, Sender> senders;
+
+    /**
+     * Number of processes, the size of the timestamps
+     */
+    private int processNum;
+
+    private AtomicLong deliveries = new AtomicLong();
+    private AtomicLong violations = new AtomicLong();
+    private AtomicLong unmatched = new AtomicLong();
+    private AtomicLong undelivered = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+
+    private List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Constructor
+     * @param workDir directory for the spill files, created if needed
+     * @param threads number of threads of the fork-join pool
+     */
+    public CausalOrderVerifier(File workDir, int threads){
+        this.workDir = workDir;
+        this.threads = threads;
+    }
+
+    /**
+     * Check the deliveries of all traces. The traces of processes which did not trace are missing, their
+     * messages are neither checked nor required.
+     * @param paths trace files of the processes
+     * @return true if no delivery violated causal order
+     * @throws IOException if a trace could not be read or the work directory not written
+     */
+    public boolean verify(List<String> paths) throws IOException{
+        workDir.mkdirs();
+        senders = new HashMap<Integer, Sender>();
+        for(String path: paths){
+            TraceDecoder trace = new TraceDecoder(path);
+            int process = trace.getProcess();
+            trace.close();
+
+            if(senders.containsKey(process))
+                throw new IOException(path + " is a second trace of P" + process);
+            senders.put(process, new Sender(process, path));
+            processNum = Math.max(processNum, process + 1);
+        }
+
+        final List<Sender> list = new ArrayList<Sender>(senders.values());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try{
+            long start = System.nanoTime();
+            pool.invoke(new RecursiveAction() {
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                    for(final Sender sender: list){
+                        tasks.add(new RecursiveAction() {
+                            protected void compute() {
+                                try{
+                                    spill(sender);
+                                }catch (IOException e){
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+                        });
+                    }
+                    invokeAll(tasks);
+                }
+            });
+
+            for(Sender sender: list)
+                processNum = Math.max(processNum, sender.clockSize);
+            logger.info("Spilled the sends of " + list.size() + " processes in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            pool.invoke(new CheckDeliveries(list, 0, list.size()));
+        }catch (IllegalStateException e){
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }finally {
+            pool.shutdown();
+            for(Sender sender: list){
+                new File(workDir, "clocks-" + sender.process).delete();
+                new File(workDir, "ids-" + sender.process).delete();
+            }
+        }
+
+        return violations.get() == 0;
+    }
+
+    /**
+     * Checks the deliveries of a range of destinations, splitting the range down to one destination per task.
+     */
+    private class CheckDeliveries extends RecursiveAction {
+        private List<Sender> destinations;
+        private int from, to;
+
+        private CheckDeliveries(List<Sender> destinations, int from, int to){
+            this.destinations = destinations;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from > 1){
+                int middle = (from + to) >>> 1;
+                invokeAll(new CheckDeliveries(destinations, from, middle), new CheckDeliveries(destinations, middle, to));
+                return;
+            }
+
+            for(int i = from; i < to; i ++){
+                try{
+                    check(destinations.get(i));
+                }catch (IOException e){
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * First pass over the trace of a sender: spill the timestamps of its messages, count the messages per
+     * destination, then read the trace again to place the ids of the messages of every destination.
+     */
+    private void spill(Sender sender) throws IOException{
+        int[] counts = new int[0];
+        File clockFile = new File(workDir, "clocks-" + sender.process);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(clockFile), 64 * 1024));
+
+        TraceDecoder trace = new TraceDecoder(sender.path);
+        try{
+            int lastId = 0;
+            while(trace.next()){
+                if(!trace.getTypeName().equals("SEND"))
+                    continue;
+
+                int[] ts = trace.getValues();
+                if(sender.clockSize == 0){
+                    sender.clockSize = ts.length;
+                    counts = new int[Math.max(ts.length, processNum)];
+                }
+                if(ts.length != sender.clockSize || trace.getPeer() >= counts.length)
+                    throw new IOException(sender.path + " has messages of systems of different size");
+
+                counts[trace.getPeer()] ++;
+                // copies of a multicast share their id and timestamp
+                if(trace.getA() != lastId){
+                    if(trace.getA() < lastId)
+                        throw new IOException(sender.path + " has decreasing message ids, was the process cleared?");
+                    out.writeInt(trace.getA());
+                    for(int entry: ts)
+                        out.writeInt(entry);
+                    sender.clockCount ++;
+                    lastId = trace.getA();
+                }
+            }
+        }finally {
+            trace.close();
+            out.close();
+        }
+
+        sender.offsets = new long[counts.length + 1];
+        for(int i = 0; i < counts.length; i ++)
+            sender.offsets[i + 1] = sender.offsets[i] + counts[i];
+
+        File idFile = new File(workDir, "ids-" + sender.process);
+        sender.ids = new MappedInts(idFile, sender.offsets[counts.length], true);
+        long[] next = new long[counts.length];
+        System.arraycopy(sender.offsets, 0, next, 0, counts.length);
+
+        trace = new TraceDecoder(sender.path);
+        try{
+            while(trace.next()){
+                if(trace.getTypeName().equals("SEND"))
+                    sender.ids.put(next[trace.getPeer()] ++, trace.getA());
+            }
+        }finally {
+            trace.close();
+        }
+
+        sender.clocks = new MappedInts(clockFile, sender.clockCount * (sender.clockSize + 1), false);
+    }
+
+    /**
+     * Second pass over the trace of a destination: check every delivery against the messages of all senders
+     * to it. Messages of one sender must be delivered in the order of their ids, so the messages delivered
+     * from a sender are the first delivered[j] of its messages to the destination.
+     */
+    private void check(Sender destination) throws IOException{
+        int process = destination.process;
+        int[] delivered = new int[processNum];
+        int[] broadcasts = new int[processNum];
+
+        TraceDecoder trace = new TraceDecoder(destination.path);
+        try{
+            while(trace.next()){
+                String type = trace.getTypeName();
+                if(type.equals("DELIVER")){
+                    deliveries.incrementAndGet();
+                    checkDelivery(process, trace.getPeer(), trace.getA(), delivered);
+                }else if(type.equals("DELIVER_BROADCAST")){
+                    deliveries.incrementAndGet();
+                    checkBroadcast(process, trace.getPeer(), trace.getA(), trace.getValues(), broadcasts);
+                }else if(type.equals("DROPPED")){
+                    dropped.addAndGet(trace.getA());
+                }
+            }
+        }finally {
+            trace.close();
+        }
+
+        for(Sender sender: senders.values()){
+            int missing = sender.countTo(process) - delivered[sender.process];
+            if(missing > 0)
+                undelivered.addAndGet(missing);
+        }
+    }
+
+    private void checkDelivery(int process, int src, int id, int[] delivered){
+        Sender sender = senders.get(src);
+        long record = sender == null ? -1 : sender.findClock(id);
+        if(record == -1){
+            unmatched.incrementAndGet();
+            return;
+        }
+
+        int k = delivered[src];
+        if(k >= sender.countTo(process) || sender.idAt(process, k) != id){
+            int position = sender.countUpTo(process, id) - 1;
+            if(position < 0 || sender.idAt(process, position) != id)
+                unmatched.incrementAndGet();
+            else if(position > k){
+                // the skipped messages count as delivered, their late delivery is not reported again
+                report("P" + process + " delivered " + src + ":" + id + " before " + src + ":" +
+                        sender.idAt(process, k) + " of the same sender");
+                delivered[src] = position + 1;
+            }
+            return;
+        }
+
+        long base = record * (sender.clockSize + 1) + 1;
+        for(int j = 0; j < sender.clockSize; j ++){
+            Sender other = senders.get(j);
+            if(other == null || j == src)
+                continue;
+
+            int bound = sender.clocks.get(base + j);
+            if(bound > 0 && delivered[j] < other.countUpTo(process, bound)){
+                report("P" + process + " delivered " + src + ":" + id + " before " + j + ":" +
+                        other.idAt(process, delivered[j]) + " which happened before it");
+                break;
+            }
+        }
+        delivered[src] = k + 1;
+    }
+
+    private void checkBroadcast(int process, int src, int id, int[] ts, int[] delivered){
+        if(src >= delivered.length){
+            unmatched.incrementAndGet();
+            return;
+        }
+
+        if(delivered[src] != id - 1){
+            report("P" + process + " delivered broadcast " + src + ":" + id + " after broadcast " + src + ":" + delivered[src]);
+        }else{
+            for(int j = 0; j < ts.length && j < delivered.length; j ++){
+                if(j != src && delivered[j] < ts[j]){
+                    report("P" + process + " delivered broadcast " + src + ":" + id + " before broadcast " + j + ":" + ts[j]);
+                    break;
+                }
+            }
+        }
+        delivered[src] = Math.max(delivered[src], id);
+    }
+
+    private void report(String violation){
+        if(violations.incrementAndGet() <= MAX_REPORTED)
+            reported.add(violation);
+    }
+
+    public long getDeliveries(){
+        return deliveries.get();
+    }
+
+    public long getViolations(){
+        return violations.get();
+    }
+
+    /**
+     * @return the first violations found
+     */
+    public List<String> getReported(){
+        return new ArrayList<String>(reported);
+    }
+
+    @Override
+    public String toString(){
+        return "checked " + deliveries + " deliveries of " + senders.size() + " processes: " + violations + " violations, " +
+                unmatched + " deliveries of untraced messages, " + undelivered + " messages never delivered, " +
+                dropped + " events dropped";
+    }
+
+    /**
+     * Verify trace files and print the violations found.
+     * @param args [-work dir] [-threads n] paths of the trace files
+     */
+    public static void main(String args[]) throws IOException{
+        File workDir = new File(System.getProperty("java.io.tmpdir"), "causal-verifier-" + System.nanoTime());
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<String>();
+        for(int i = 0; i < args.length; i ++){
+            if(args[i].equals("-work"))
+                workDir = new File(args[++ i]);
+            else if(args[i].equals("-threads"))
+                threads = Integer.parseInt(args[++ i]);
+            else
+                paths.add(args[i]);
+        }
+
+        CausalOrderVerifier verifier = new CausalOrderVerifier(workDir, threads);
+        boolean correct = verifier.verify(paths);
+        workDir.delete();
+
+        for(String violation: verifier.getReported())
+            System.out.println(violation);
+        System.out.println(verifier);
+        System.exit(correct ? 0 : 1);
+    }
+}
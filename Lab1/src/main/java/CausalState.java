@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timestamp, local buffer and pending messages of one process of the Schiper-Eggli-Sandoz algorithm,
+ * with the delivery condition and the rules merging a delivered message into them.
+ *
+ * It does not depend on RMI or on url.properties, so it could be created on its own, e.g. by benchmarks.
+ * Not thread-safe, it is owned by the event loop of the process.
+ */
+public class CausalState {
+
+    private int processNum;
+
+    private int index;
+
+    /**
+     * The timestamp of the process
+     */
+    private VectorClock ts;
+
+    /**
+     * Map to store the most up-to-date timestamp the process knows for all other processes.
+     */
+    private Map<Integer, VectorClock> localBuffer;
+
+    /**
+     * The latest timestamp of every process known from its delivered messages,
+     * used to drop local buffer entries which could no longer block a delivery.
+     * Indexed by process, null for processes no message was delivered from.
+     */
+    private VectorClock[] peerClock;
+
+    /**
+     * All messages received but not deliverable yet.
+     */
+    private PendingQueue pendingMessage;
+
+    /**
+     * Tracks changes of the local buffer for differential piggybacking, null if messages carry full buffers.
+     */
+    private DeltaEncoder deltaEncoder;
+
+    /**
+     * Constructor
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     */
+    public CausalState(int processNum, int index){
+        this(processNum, index, true);
+    }
+
+    /**
+     * Constructor
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     * @param trackChanges whether changes of the local buffer are tracked for differential piggybacking
+     */
+    public CausalState(int processNum, int index, boolean trackChanges){
+        this.processNum = processNum;
+        this.index = index;
+        ts = new VectorClock(processNum);
+        localBuffer = new HashMap<Integer, VectorClock>();
+        peerClock = new VectorClock[processNum];
+        pendingMessage = new PendingQueue(processNum, index);
+        if(trackChanges)
+            deltaEncoder = new DeltaEncoder(processNum);
+    }
+
+    /**
+     * Increase the local timestamp by 1.
+     */
+    public void increaseTimestamp(){
+        ts.increment(index);
+    }
+
+    /**
+     * Stamp a message sent to a group of processes with the timestamp and the buffer, then remember the send.
+     * Every copy carries the timestamp as the entry of the other destinations, so a message sent after the
+     * delivery of one copy could not overtake the copies to the other destinations. The entry of the
+     * destination itself is the one before the send, it is the delivery condition of the copy.
+     * @param destIds indices of the destinations
+     * @param message message to be sent
+     * @return a copy of the message for every destination
+     */
+    public List<Message> send(int[] destIds, Message message){
+        increaseTimestamp();
+        message.setTs(ts);
+
+        VectorClock[] previous = new VectorClock[destIds.length];
+        for(int i = 0; i < destIds.length; i ++){
+            VectorClock sent = localBuffer.get(destIds[i]);
+            previous[i] = sent == null ? null : new VectorClock(sent);
+            if(sent == null)
+                localBuffer.put(destIds[i], new VectorClock(ts));
+            else
+                sent.copyFrom(ts);
+            touch(destIds[i]);
+        }
+
+        // full buffers of all copies only differ in the entry of their destination, the clocks are copied once
+        Map<Integer, VectorClock> common = null;
+        if(deltaEncoder == null){
+            common = new HashMap<Integer, VectorClock>(localBuffer.size() * 2);
+            for(Map.Entry<Integer, VectorClock> iter: localBuffer.entrySet())
+                common.put(iter.getKey(), new VectorClock(iter.getValue()));
+        }
+
+        List<Message> copies = new ArrayList<Message>(destIds.length);
+        for(int i = 0; i < destIds.length; i ++){
+            int destId = destIds[i];
+            Message copy = message.copyFor(destId);
+
+            // differences of the buffer depend on the channel, so they are encoded per destination
+            if(deltaEncoder != null)
+                deltaEncoder.encode(destId, copy, localBuffer);
+            else
+                copy.attachBuffer(destIds.length == 1 ? common : new HashMap<Integer, VectorClock>(common));
+
+            // a delta sends a missing entry as null, so the receiver drops the entry it saw before
+            if(previous[i] != null || deltaEncoder != null)
+                copy.getBuffer().put(destId, previous[i]);
+            else
+                copy.getBuffer().remove(destId);
+            copies.add(copy);
+        }
+
+        // the copies carried the old entries of their destinations, the next messages carry the new ones
+        for(int destId: destIds)
+            touch(destId);
+        return copies;
+    }
+
+    /**
+     * Check whether the received message could be delivered or not.
+     * @param message the message to be checked
+     * @return true if message could be delivered right away
+     *         false then the message should be postponed
+     */
+    public boolean isDeliveryReady(Message message){
+
+        VectorClock messageClock = message.getBuffer().get(index);
+
+        return messageClock == null || messageClock.isLessOrEqual(ts);
+    }
+
+    /**
+     * Update the timestamp and the local buffer with a delivered message.
+     * Pending messages unblocked by the update could be retrieved with pollPending.
+     * @param message message delivered
+     */
+    public void deliver(Message message){
+        increaseTimestamp();
+        pendingMessage.advance(index, ts);
+
+        mergeClocks(message.getTs());
+        updatePeerClock(message.getSrcId(), message.getTs());
+        mergeBuffer(message.getBuffer());
+    }
+
+    /**
+     * Postpone a message which is not deliverable yet.
+     * @param message message to postpone
+     */
+    public void postpone(Message message){
+        pendingMessage.add(message, ts);
+    }
+
+    /**
+     * @return the earliest postponed message which became deliverable, null if there is none
+     */
+    public Message pollPending(){
+        return pendingMessage.poll();
+    }
+
+    /**
+     * Merge the local buffer with a buffer in the message received, in place.
+     * Compare the clock for processes with same index. Skip the clock for current process.
+     * @param messageBuffer buffer accompanied in the message
+     */
+    public void mergeBuffer(Map<Integer, VectorClock> messageBuffer){
+        for(Map.Entry<Integer, VectorClock> iter: messageBuffer.entrySet()){
+            // the key is boxed already, reuse it for the lookups
+            Integer processId = iter.getKey();
+            int id = processId;
+            if(id == index || isObsolete(id, iter.getValue()))
+                continue;
+
+            VectorClock localClock = localBuffer.get(processId);
+            if(localClock == null){
+                localBuffer.put(processId, new VectorClock(iter.getValue()));
+                touch(id);
+            }else if(localClock.merge(iter.getValue())){
+                touch(id);
+            }
+        }
+    }
+
+    /**
+     * Merge the timestamp of a delivered message into the local timestamp, in place.
+     * Pending messages blocked on an entry which increased are checked again.
+     * @param messageClock timestamp accompanied in the message
+     */
+    public void mergeClocks(VectorClock messageClock){
+        for(int i = 0; i < processNum; i ++){
+            if(messageClock.get(i) > ts.get(i)){
+                ts.set(i, messageClock.get(i));
+                pendingMessage.advance(i, ts);
+            }
+        }
+    }
+
+    /**
+     * Remember the latest timestamp of a process, known from a message of it which was delivered,
+     * and drop the buffer entry of that process if it became obsolete.
+     * @param processId index of the process which sent the message
+     * @param clock timestamp of the message
+     */
+    public void updatePeerClock(int processId, VectorClock clock){
+        VectorClock peer = peerClock[processId];
+        if(peer == null)
+            peerClock[processId] = new VectorClock(clock);
+        else
+            peer.merge(clock);
+
+        VectorClock localClock = localBuffer.get(processId);
+        if(localClock != null && isObsolete(processId, localClock)){
+            localBuffer.remove(processId);
+            touch(processId);
+        }
+    }
+
+    private void touch(int processId){
+        if(deltaEncoder != null)
+            deltaEncoder.touch(processId);
+    }
+
+    /**
+     * Check whether a buffer entry could no longer block a delivery.
+     * That is the case once process processId is known to have reached the clock of the entry:
+     * every message carrying the entry satisfies it on arrival.
+     * @param processId index of the process the entry belongs to
+     * @param clock clock of the entry
+     * @return true if the entry could be dropped
+     */
+    private boolean isObsolete(int processId, VectorClock clock){
+        VectorClock peer = peerClock[processId];
+        return peer != null && clock.isLessOrEqual(peer);
+    }
+
+    /**
+     * Replace the whole state, e.g. by the state saved in a snapshot.
+     * @param pending postponed messages in arrival order
+     */
+    public void restore(VectorClock ts, Map<Integer, VectorClock> localBuffer, VectorClock[] peerClock,
+                        List<Message> pending, DeltaEncoder deltaEncoder){
+        this.ts = ts;
+        this.localBuffer = localBuffer;
+        this.peerClock = peerClock;
+        this.deltaEncoder = deltaEncoder;
+        pendingMessage.clear();
+        for(Message message: pending)
+            pendingMessage.add(message, ts);
+    }
+
+    public void clear(){
+        ts.reset();
+        localBuffer.clear();
+        Arrays.fill(peerClock, null);
+        pendingMessage.clear();
+        if(deltaEncoder != null)
+            deltaEncoder.clear();
+    }
+
+    public VectorClock getTs(){
+        return ts;
+    }
+
+    public Map<Integer, VectorClock> getLocalBuffer(){
+        return localBuffer;
+    }
+
+    /**
+     * @return the latest known timestamp of every process by index, null if it is not known
+     */
+    public VectorClock[] getPeerClock(){
+        return peerClock;
+    }
+
+    public DeltaEncoder getDeltaEncoder(){
+        return deltaEncoder;
+    }
+
+    /**
+     * @return all postponed messages in arrival order
+     */
+    public List<Message> getPending(){
+        return pendingMessage.toList();
+    }
+
+    public int getBufferSize(){
+        return localBuffer.size();
+    }
+
+    public int getPendingSize(){
+        return pendingMessage.size();
+    }
+}
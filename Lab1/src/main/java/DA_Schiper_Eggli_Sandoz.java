@@ -1,14 +1,22 @@
+import org.apache.commons.configuration2.Configuration;
 import org.apache.log4j.Logger;
 
-import java.net.MalformedURLException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
-        implements DA_Schiper_Eggli_Sandoz_RMI, Runnable {
+public class DA_Schiper_Eggli_Sandoz implements DA_Schiper_Eggli_Sandoz_RMI, Runnable {
 
     /**
      * The total number of process in the system
@@ -21,41 +29,131 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
     private int index;
 
     /**
-     * The timestamp of the current process
+     * The timestamp, local buffer and pending messages of the current process.
      */
-    private List<Integer> ts;
+    private CausalState state;
 
     /**
-     * The local buffer within the current process.
-     * Map to store the most up-to-date timestamp the current process knows for all other processes.
+     * Number of entries in the local buffer, readable outside the event loop.
      */
-    private Map<Integer, List<Integer>> localBuffer;
+    private volatile int bufferSize;
 
     /**
-     * List of all messages the process received.
+     * Number of pending messages, readable outside the event loop.
      */
-    private List<Message> receivedMessage;
+    private volatile int pendingSize;
 
     /**
-     * List of all messages the process received but could not delivered
-     * due to the delay of some previous messages.
+     * Delivery statistics, exposed through JMX.
      */
-    private List<Message> pendingMessage;
+    private SESMetrics metrics;
 
     /**
-     * List of all messages the process received and delivered.
+     * The most recent messages the process received.
      */
-    private List<Message> deliveredMessage;
+    private MessageHistory receivedMessage;
 
     /**
-     * List of all servers in the system
+     * The most recent messages the process received and delivered.
      */
-    private Map<Integer, DA_Schiper_Eggli_Sandoz_RMI> processList;
+    private MessageHistory deliveredMessage;
 
     /**
-     * Map of url of remote process and its process index.
+     * Optional log of all delivered messages outside the heap, null if disabled.
      */
-    private Map<Integer, String> port;
+    private DeliveryLog deliveryLog;
+
+    /**
+     * Reaches all servers in the system, through RMI stubs looked up in parallel at startup
+     * or directly inside this JVM.
+     */
+    private Transport processList;
+
+    /**
+     * Whether outgoing messages only carry the buffer entries changed since the last message
+     * on the same channel, set by buffer_mode = delta in url.properties.
+     */
+    private boolean deltaBuffer;
+
+    /**
+     * Rebuilds the buffers of differential messages, one per source process.
+     */
+    private Map<Integer, DeltaDecoder> deltaDecoders;
+
+    /**
+     * Fires the delayed receives of the messages sent by this process.
+     */
+    private DelayScheduler scheduler;
+
+    /**
+     * Outgoing channels collecting messages into batches, one per destination, created on the first message to it.
+     */
+    private ConcurrentMap<Integer, MessageBatcher> channels;
+
+    /**
+     * Runs all sends, receives and clears of this process one at a time, the only writer of its state.
+     */
+    private EventLoop eventLoop;
+
+    /**
+     * Whether broadcast uses the Birman-Schiper-Stephenson engine, set by broadcast_engine = bss in url.properties.
+     */
+    private boolean bssBroadcast;
+
+    private BirmanSchiperStephenson broadcastEngine;
+
+    /**
+     * Optional write-ahead log of all events of this process, null if disabled.
+     * Messages are handed out and receives acknowledged only once their events are on disk.
+     */
+    private WriteAheadLog wal;
+
+    /**
+     * Number of logged events after which a snapshot replaces the log
+     */
+    private int snapshotInterval;
+
+    /**
+     * Whether the events of the write-ahead log are being replayed, which must not send or log deliveries again
+     */
+    private boolean recovering;
+
+    private int batchSize;
+
+    private int batchLinger;
+
+    /**
+     * Credits of this process as a sender and its backlog per source, see pending_limit in url.properties
+     */
+    private FlowControl flowControl;
+
+    /**
+     * Credits to grant to the sources of the messages delivered by the current event, owned by the event loop
+     */
+    private Map<Integer, Integer> grants;
+
+    /**
+     * Optional binary trace of sends, receives and deliveries, null if disabled
+     */
+    private TraceRecorder trace;
+
+    private static final int TRACE_SEND = 0;
+    private static final int TRACE_RECEIVE = 1;
+    private static final int TRACE_POSTPONE = 2;
+    private static final int TRACE_DELIVER = 3;
+    private static final int TRACE_BROADCAST = 4;
+
+    /**
+     * Labels of the traced events. The id of a message is the entry of its sender in its timestamp,
+     * the condition of a received message is its buffer entry for this process.
+     */
+    static final String[][] TRACE_TYPES = {
+            {"SEND", "to", "id", "buffer", null, "ts"},
+            {"RECEIVE", "from", "id", "pending", null, "condition"},
+            {"POSTPONE", "from", "id", "pending", null, "ts"},
+            {"DELIVER", "from", "id", "buffer", null, "ts"},
+            {"DELIVER_BROADCAST", "from", "id", null, null, "ts"}
+    };
 
     final static Logger logger = Logger.getLogger(DA_Schiper_Eggli_Sandoz.class);
 
@@ -65,21 +163,96 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
      * @param index Index of this server
      */
     public DA_Schiper_Eggli_Sandoz(int processNum, int index) throws RemoteException{
+        this(processNum, index, ProcessManager.loadConfiguration());
+    }
+
+    private DA_Schiper_Eggli_Sandoz(int processNum, final int index, Configuration settings) throws RemoteException{
+        this(processNum, index, settings,
+                new StubCache(settings.getStringArray("node_url"), settings.getInt("lookup_threads", 8)),
+                new DelayScheduler(settings.getInt("delay_threads", 4)),
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SES-" + index);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+        UnicastRemoteObject.exportObject(this, 0);
+        metrics.register(index);
+    }
+
+    /**
+     * Constructor for processes sharing their threads, e.g. thousands of processes in one JVM
+     * connected by a LocalTransport. The process is neither exported to RMI nor registered with JMX,
+     * see UnicastRemoteObject.exportObject and SESMetrics.register.
+     * @param processNum Number of servers in the system
+     * @param index Index of this server
+     * @param settings optional settings, as in url.properties
+     * @param transport transport reaching all servers
+     * @param scheduler scheduler firing the delayed receives, may be shared by several servers
+     * @param executor executor running the event loop, may be shared by several servers
+     */
+    public DA_Schiper_Eggli_Sandoz(int processNum, int index, Configuration settings, Transport transport,
+                                   DelayScheduler scheduler, Executor executor) throws RemoteException{
         this.index =index;
         this.processNum = processNum;
-        ts = new ArrayList<Integer>();
-        for(int i = 0; i < processNum; i ++)
-            ts.add(0);
-        localBuffer = new HashMap<Integer, List<Integer>>();
-        receivedMessage = new ArrayList<Message>();
-        pendingMessage = new ArrayList<Message>();
-        deliveredMessage = new ArrayList<Message>();
-        port = new HashMap<Integer, String>();
-        processList = new HashMap<Integer, DA_Schiper_Eggli_Sandoz_RMI>();
-
-        String[] urls = ProcessManager.readConfiguration();
-        for(int i = 0; i < urls.length; i ++)
-            port.put(i, urls[i]);
+        processList = transport;
+        this.scheduler = scheduler;
+        eventLoop = new EventLoop(executor);
+
+        deltaBuffer = "delta".equals(settings.getString("buffer_mode", "full"));
+        state = new CausalState(processNum, index, deltaBuffer);
+        deltaDecoders = new HashMap<Integer, DeltaDecoder>();
+        channels = new ConcurrentHashMap<Integer, MessageBatcher>();
+        batchSize = settings.getInt("batch_size", 1);
+        batchLinger = settings.getInt("batch_linger", 5);
+        bssBroadcast = "bss".equals(settings.getString("broadcast_engine", "ses"));
+        flowControl = new FlowControl(settings.getInt("pending_limit", 0),
+                "reject".equals(settings.getString("flow_control", "block")));
+        grants = new HashMap<Integer, Integer>();
+
+        int historySize = settings.getInt("history_size", 10000);
+        receivedMessage = new MessageHistory(historySize);
+        deliveredMessage = new MessageHistory(historySize);
+
+        String logPath = settings.getString("delivery_log", null);
+        if(logPath != null){
+            try{
+                deliveryLog = new DeliveryLog(logPath);
+            }catch (IOException e){
+                logger.error("Failed to open delivery log " + logPath);
+                e.printStackTrace();
+            }
+        }
+
+        metrics = new SESMetrics(this, scheduler, eventLoop);
+
+        String traceDir = settings.getString("trace_dir", null);
+        if(traceDir != null){
+            String tracePath = traceDir + File.separator + "trace-" + index + ".bin";
+            try{
+                trace = new TraceRecorder(tracePath, index, TRACE_TYPES, settings.getInt("trace_buffer", 1 << 16));
+            }catch (IOException e){
+                logger.error("Failed to open trace " + tracePath);
+                e.printStackTrace();
+            }
+        }
+
+        String walDir = settings.getString("wal_dir", null);
+        if(walDir != null){
+            snapshotInterval = settings.getInt("wal_snapshot_interval", 10000);
+            try{
+                wal = new WriteAheadLog(walDir, index, settings.getInt("wal_sync_interval", 2));
+                eventLoop.executeAndWait(new Runnable() {
+                    public void run() {
+                        recover();
+                    }
+                });
+            }catch (IOException e){
+                logger.error("Failed to open write-ahead log in " + walDir);
+                e.printStackTrace();
+            }
+        }
 
         logger.info("Initialize process " + index + " of " + processNum);
 
@@ -92,35 +265,139 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
      * @throws RemoteException
      */
     public void send(int destId, Message message) throws RemoteException{
+        multicast(new int[]{destId}, message);
+    }
 
-        //if the process of index node is not initialized, initialize it
-        if(!processList.containsKey(destId)){
-            try {
-                DA_Schiper_Eggli_Sandoz_RMI newProcess = (DA_Schiper_Eggli_Sandoz_RMI) Naming.lookup(port.get(destId));
-                processList.put(destId, newProcess);
-            } catch (RemoteException e1) {
-                e1.printStackTrace();
-            } catch (MalformedURLException e2) {
-                e2.printStackTrace();
-            } catch (NotBoundException e3) {
-                e3.printStackTrace();
+    /**
+     * Send one message to a group of servers, keeping causal order with all other messages of this server.
+     * The clock is increased once and all destinations share the same timestamp and buffer.
+     * With flow control, waits for a credit of every destination first.
+     * @param destIds indices of the destination servers
+     * @param message message to be sent
+     * @throws BacklogExceededException if a destination has no credit left and flow_control = reject
+     * @throws RemoteException
+     */
+    public void multicast(final int[] destIds, final Message message) throws RemoteException{
+        acquireCredits(destIds);
+        eventLoop.execute(new Runnable() {
+            public void run() {
+                long position = log(WriteAheadLog.SEND, new Object[]{destIds, message});
+                dispatch(position, sendGroup(destIds, message));
+                checkpoint();
             }
+        });
+    }
+
+    /**
+     * Send one message to all other servers. Uses a multicast of this algorithm, or the
+     * Birman-Schiper-Stephenson engine if broadcast_engine = bss in url.properties.
+     * @param message message to be sent
+     * @throws RemoteException
+     */
+    public void broadcast(final Message message) throws RemoteException{
+        final int[] destIds = new int[processNum - 1];
+        for(int i = 0, j = 0; i < processNum; i ++){
+            if(i != index)
+                destIds[j ++] = i;
         }
 
-        increaseTimestamp();
-        message.setBuffer(this.localBuffer);
-        message.setTs(this.ts);
+        if(!bssBroadcast){
+            multicast(destIds, message);
+            return;
+        }
 
-        logger.info("Send Message from P" + index + " to P" + destId +
-                " with buffer " + message.getBuffer() +
-                " and timestamp " + message.getTs());
+        acquireCredits(destIds);
+        eventLoop.execute(new Runnable() {
+            public void run() {
+                long position = log(WriteAheadLog.BROADCAST, message);
+                broadcastEngine().stamp(message);
+                deliverBroadcast(message);
+
+                List<Message> copies = new ArrayList<Message>(destIds.length);
+                for(int destId: destIds)
+                    copies.add(message.copyFor(destId));
+                dispatch(position, copies);
+                checkpoint();
+            }
+        });
+    }
 
-        //create a new thread to sleep and send
-        DelayedReceive delayedProcess = new DelayedReceive(processList.get(destId), message);
-        new Thread(delayedProcess).start();
+    /**
+     * Take a credit of every destination before a message is stamped.
+     * @param destIds indices of the destination servers
+     * @throws BacklogExceededException if a destination has no credit left and flow_control = reject
+     */
+    private void acquireCredits(int[] destIds) throws BacklogExceededException{
+        if(!flowControl.acquire(destIds))
+            throw new BacklogExceededException("P" + index + " has too many undelivered messages at " +
+                    Arrays.toString(destIds));
+    }
 
-        localBuffer.put(destId, Util.copyList(this.ts));
+    /**
+     * Start looking up all servers in the system in parallel, so the first messages do not wait for the registry.
+     */
+    public void prewarm(){
+        processList.prewarm();
+    }
 
+    /**
+     * Stamp a message with the timestamp and buffer of this process. Runs on the event loop.
+     * @param destIds indices of the destination servers
+     * @param message message to be sent
+     * @return a copy of the message for every destination
+     */
+    private List<Message> sendGroup(int[] destIds, Message message){
+        List<Message> copies = state.send(destIds, message);
+
+        bufferSize = state.getBufferSize();
+        for(Message copy: copies)
+            trace(TRACE_SEND, copy.getDestId(), copy.getTs().get(index), bufferSize, copy.getTs());
+
+        return copies;
+    }
+
+    /**
+     * @return the outgoing channel to a destination
+     */
+    private MessageBatcher channel(int destId){
+        MessageBatcher channel = channels.get(destId);
+        if(channel == null){
+            channel = new MessageBatcher(destId, processList, scheduler, batchSize, batchLinger);
+            MessageBatcher existing = channels.putIfAbsent(destId, channel);
+            if(existing != null)
+                channel = existing;
+        }
+        return channel;
+    }
+
+    /**
+     * @return the Birman-Schiper-Stephenson engine, created on the first broadcast sent or received
+     */
+    private BirmanSchiperStephenson broadcastEngine(){
+        if(broadcastEngine == null)
+            broadcastEngine = new BirmanSchiperStephenson(processNum, index);
+        return broadcastEngine;
+    }
+
+    /**
+     * Hand every message to its destination once its delay expires, as soon as the event
+     * which stamped the messages is durable.
+     * @param position position of the event in the write-ahead log
+     * @param copies messages to send
+     */
+    private void dispatch(long position, final List<Message> copies){
+        Runnable send = new Runnable() {
+            public void run() {
+                //receive on the destination once the delay expires
+                for(Message copy: copies)
+                    scheduler.schedule(channel(copy.getDestId()), copy);
+            }
+        };
+
+        if(wal == null)
+            send.run();
+        else
+            wal.whenDurable(position, send);
     }
 
     /**
@@ -128,26 +405,102 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
      * @param message message to receive
      * @throws RemoteException
      */
-    public synchronized void receive(Message message) throws RemoteException{
+    public void receive(final Message message) throws RemoteException{
+        message.setReceiveTime(System.nanoTime());
+        final CountDownLatch durable = new CountDownLatch(wal == null ? 0 : 1);
+        eventLoop.execute(new Runnable() {
+            public void run() {
+                long position = log(WriteAheadLog.RECEIVE, message);
+                receiveMessage(message);
+                acknowledge(position, durable);
+                grantCredits();
+                checkpoint();
+            }
+        });
+        awaitDurable(durable);
+    }
+
+    /**
+     * Receive a batch of messages from one remote process, in the order they were sent.
+     * @param messages messages to receive
+     * @throws RemoteException
+     */
+    public void receiveBatch(final List<Message> messages) throws RemoteException{
+        long now = System.nanoTime();
+        for(Message message: messages)
+            message.setReceiveTime(now);
+
+        final CountDownLatch durable = new CountDownLatch(wal == null ? 0 : 1);
+        eventLoop.execute(new Runnable() {
+            public void run() {
+                long position = 0;
+                for(Message message: messages){
+                    position = log(WriteAheadLog.RECEIVE, message);
+                    receiveMessage(message);
+                }
+                acknowledge(position, durable);
+                grantCredits();
+                checkpoint();
+            }
+        });
+        awaitDurable(durable);
+    }
+
+    /**
+     * Rebuild the full buffer of a message if needed, then deliver or postpone it. Runs on the event loop.
+     * @param message message to receive
+     */
+    private void receiveMessage(Message message){
+        flowControl.received(message.getSrcId());
+
+        if(message.isBroadcast()){
+            receivedMessage.add(message);
+            for(Message delivered: broadcastEngine().receive(message))
+                deliverBroadcast(delivered);
+        }else if(message.isDelta()){
+            DeltaDecoder decoder = deltaDecoders.get(message.getSrcId());
+            if(decoder == null){
+                decoder = new DeltaDecoder();
+                deltaDecoders.put(message.getSrcId(), decoder);
+            }
+
+            // rebuild the full buffer, messages with missing predecessors wait in the decoder
+            for(Message decoded: decoder.decode(message))
+                handleMessage(decoded);
+        }else{
+            handleMessage(message);
+        }
+    }
+
+    /**
+     * Deliver a message carrying a full buffer, or postpone it.
+     * @param message message to handle
+     */
+    private void handleMessage(Message message){
 
         receivedMessage.add(message);
-        logger.info("P" + message.getDestId() + " receive a message from P" + message.getSrcId() +
-                " with buffer " + message.getBuffer());
+        metrics.recordArrival(state.getPendingSize());
+        trace(TRACE_RECEIVE, message.getSrcId(), message.getTs().get(message.getSrcId()), state.getPendingSize(),
+                message.getBuffer().get(index));
 
         // check whether the message could be delivered
-        if(isDeliveryReady(message)){
+        if(state.isDeliveryReady(message)){
             deliver(message);
 
             // check the message in pending list could be delivered
             Message temp = null;
-            while((temp = checkPendingList()) != null){
+            int unblocked = 0;
+            while((temp = state.pollPending()) != null){
                 deliver(temp);
-                pendingMessage.remove(temp);
+                unblocked ++;
             }
+            metrics.recordUnblocked(unblocked);
+            pendingSize = state.getPendingSize();
         }else{
-            pendingMessage.add(message);
-            logger.info("P" + message.getDestId() + " postpone a message from P" + message.getSrcId() +
-                    " with buffer " + message.getBuffer() + " at current state " + ts);
+            state.postpone(message);
+            pendingSize = state.getPendingSize();
+            metrics.recordPostponed();
+            trace(TRACE_POSTPONE, message.getSrcId(), message.getTs().get(message.getSrcId()), pendingSize, state.getTs());
         }
     }
 
@@ -156,33 +509,44 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
      * @throws RemoteException
      */
     public void clear() throws RemoteException{
-        ts = new ArrayList<Integer>();
-        for(int i = 0; i < processNum; i ++)
-            ts.add(0);
-        localBuffer = new HashMap<Integer, List<Integer>>();
-        receivedMessage = new ArrayList<Message>();
-        pendingMessage = new ArrayList<Message>();
-        deliveredMessage = new ArrayList<Message>();
-        logger.info(" current buffer " + this.localBuffer + "  current ts " + ts);
+        eventLoop.executeAndWait(new Runnable() {
+            public void run() {
+                state.clear();
+                Map<Integer, Integer> dropped = flowControl.clear();
+                if(flowControl.isEnabled()){
+                    grants.putAll(dropped);
+                    grantCredits();
+                }
+                bufferSize = 0;
+                pendingSize = 0;
+                deltaDecoders.clear();
+                if(broadcastEngine != null)
+                    broadcastEngine.clear();
+                receivedMessage.clear();
+                deliveredMessage.clear();
+                if(wal != null)
+                    snapshot();
+                logger.info(" current buffer " + state.getLocalBuffer() + "  current ts " + state.getTs());
+            }
+        });
     }
 
     /**
-     * Check whether there exists a message in pending list could be delivered.
-     * @return Message if the message could be delivered right away
-     *         null if all messages in pending list could not delivered
+     * Deliver a broadcast of the Birman-Schiper-Stephenson engine. It does not change the clock and
+     * buffer of this algorithm, broadcasts are only ordered among themselves.
+     * @param message
      */
-    private Message checkPendingList(){
-
-        for(Message msg: pendingMessage){
-            if(isDeliveryReady(msg)){
-                return msg;
-            }
-        }
+    private void deliverBroadcast(Message message){
+        deliveredMessage.add(message);
+        if(deliveryLog != null && !recovering)
+            deliveryLog.append(message);
+        // own broadcasts are delivered when sent, not received
+        if(message.getSrcId() != index)
+            release(message);
 
-        return null;
+        trace(TRACE_BROADCAST, message.getSrcId(), message.getTs().get(message.getSrcId()), 0, message.getTs());
     }
 
-
     /**
      * Deliver a process.
      * @param message
@@ -190,14 +554,11 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
     private void deliver(Message message){
         processMessage(message);
 
-        // update local clock
-        ts = mergeClocks(ts, message.getTs());
-
-        // update local buffer
-        mergeBuffer(message.getBuffer());
+        // update local clock and local buffer
+        state.deliver(message);
+        bufferSize = state.getBufferSize();
 
-        logger.info("Deliver message \" " + message.getContent() + " \" in process " + index +
-                " after which buffer " + this.localBuffer + " state " + this.ts);
+        trace(TRACE_DELIVER, message.getSrcId(), message.getTs().get(message.getSrcId()), bufferSize, state.getTs());
     }
 
     /**
@@ -207,79 +568,197 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
     private void processMessage(Message message){
 
         deliveredMessage.add(message);
-        increaseTimestamp();
+        metrics.recordDelivery(System.nanoTime() - message.getReceiveTime());
+        if(deliveryLog != null && !recovering)
+            deliveryLog.append(message);
+        release(message);
     }
 
     /**
-     * Increase the local timestamp by 1.
+     * Count a delivered message out of the backlog of its source and owe the source its credit.
+     * Credits of replayed deliveries were granted before the restart.
      */
-    private void increaseTimestamp(){
-        ts.set(index, ts.get(index) + 1);
+    private void release(Message message){
+        if(flowControl.delivered(message.getSrcId()) && flowControl.isEnabled() && !recovering){
+            Integer count = grants.get(message.getSrcId());
+            grants.put(message.getSrcId(), count == null ? 1 : count + 1);
+        }
     }
 
     /**
-     * Check whether the received message could be delivered or not.
-     * @param message the message to be checked
-     * @return true if message could be delivered right away
-     *         false then the message will be put into pending list
+     * Grant the credits owed by the current event to their sources, one call per source. Runs on the event loop.
      */
-    private boolean isDeliveryReady(Message message){
+    private void grantCredits(){
+        if(grants.isEmpty())
+            return;
 
-        Map<Integer, List<Integer>> messageBuffer = message.getBuffer();
-
-        if (!messageBuffer.containsKey(index))
-            return true;
-
-        List<Integer> messageClock = messageBuffer.get(index);
-        boolean result = true;
-        for(int i = 0; i < processNum; i ++){
-            if(messageClock.get(i) > ts.get(i)) {
-                result = false;
-                break;
-            }
+        for(Map.Entry<Integer, Integer> iter: grants.entrySet()){
+            if(iter.getKey() == index)
+                flowControl.grant(index, iter.getValue());
+            else
+                sendGrant(iter.getKey(), iter.getValue());
         }
+        grants.clear();
+    }
 
-        return result;
+    /**
+     * Grant credits to a source on a sender thread, off the event loop. If the source could not be reached,
+     * the credits are granted again after a backoff.
+     * @param srcId index of the source process
+     * @param credits number of credits
+     */
+    private void sendGrant(final int srcId, final int credits){
+        scheduler.execute(new Runnable() {
+            public void run() {
+                DA_Schiper_Eggli_Sandoz_RMI source = processList.get(srcId);
+                try{
+                    if(source == null)
+                        throw new ConnectException("P" + srcId + " is not resolved yet");
+                    source.grantCredit(index, credits);
+                }catch (RemoteException e){
+                    if(!StubCache.isNotExecuted(e)){
+                        logger.error("Failed to grant " + credits + " credits to P" + srcId);
+                        e.printStackTrace();
+                        return;
+                    }
+
+                    processList.invalidate(srcId, source);
+                    final Runnable retry = this;
+                    scheduler.schedule(new Runnable() {
+                        public void run() {
+                            scheduler.execute(retry);
+                        }
+                    }, processList.backoff(srcId));
+                }
+            }
+        });
     }
 
+    /**
+     * Record an event in the trace if it is enabled. Replayed events are not traced again.
+     * @param peer index of the other process of the event
+     * @param id id of the message
+     * @param size size of the buffer or of the pending messages after the event
+     * @param clock clock recorded with the event, may be null
+     */
+    private void trace(int type, int peer, int id, int size, VectorClock clock){
+        if(trace != null && !recovering)
+            trace.record(type, peer, id, size, 0, clock == null ? null : clock.entries(), clock == null ? 0 : clock.size());
+    }
 
     /**
-     * Merge the local buffer with a buffer in the message received.
-     * Compare the clock for processes with same index. Skip the clock for current process.
-     * @param messageBuffer buffer accompanied in the message
+     * Append an event to the write-ahead log, before it changes the state of this process.
+     * @param type type of the event
+     * @param payload data needed to replay the event
+     * @return position of the event in the log, 0 if the log is disabled
      */
-    private void mergeBuffer(Map<Integer, List<Integer>> messageBuffer){
-        Map<Integer, List<Integer>> maxBuffer = new HashMap<Integer, List<Integer>>();
+    private long log(byte type, Serializable payload){
+        if(wal == null || recovering)
+            return 0;
+        return wal.append(type, payload);
+    }
 
-        for(Map.Entry<Integer, List<Integer>> iter: messageBuffer.entrySet()){
-            int processId = iter.getKey();
+    /**
+     * Release the caller of a receive once the event is durable.
+     */
+    private void acknowledge(long position, final CountDownLatch durable){
+        if(wal == null){
+            // closed since the receive
+            durable.countDown();
+            return;
+        }
 
-            if(processId == index)
-                continue;
+        wal.whenDurable(position, new Runnable() {
+            public void run() {
+                durable.countDown();
+            }
+        });
+    }
 
-            if(localBuffer.containsKey(processId))
-                maxBuffer.put(processId, mergeClocks(localBuffer.get(processId), iter.getValue()));
-            else
-                maxBuffer.put(processId, Util.copyList(iter.getValue()));
+    /**
+     * Block the caller of a receive until the sender could forget about the message.
+     */
+    private void awaitDurable(CountDownLatch durable){
+        try{
+            durable.await();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
         }
+    }
 
-        localBuffer.clear();
-        localBuffer = maxBuffer;
+    /**
+     * Replace the write-ahead log by a snapshot once it grew long enough. Runs on the event loop.
+     */
+    private void checkpoint(){
+        if(wal != null && wal.getRecordsSinceSnapshot() >= snapshotInterval)
+            snapshot();
+    }
+
+    private void snapshot(){
+        ArrayList<Message> pending = new ArrayList<Message>(state.getPending());
+        try{
+            wal.snapshot(new Serializable[]{state.getTs(), new HashMap<Integer, VectorClock>(state.getLocalBuffer()),
+                    state.getPeerClock().clone(), pending, state.getDeltaEncoder(),
+                    new HashMap<Integer, DeltaDecoder>(deltaDecoders), broadcastEngine});
+        }catch (IOException e){
+            logger.error("Failed to take snapshot of process " + index);
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Return a new vector clock represents the maximization of two vector clocks.
-     * Comparison is made between values with same index.
-     * @param clock1
-     * @param clock2
-     * @return a new clock merging clock1 and clock2
+     * Rebuild the state of this process from the latest snapshot and the events logged after it.
+     * Messages sent by the replayed events were handed out before, they are not sent again. Runs on the event loop.
      */
-    private List<Integer> mergeClocks(List<Integer> clock1, List<Integer> clock2){
-        List<Integer> maxClock = new ArrayList<Integer>();
-        for (int i = 0; i < clock1.size(); i ++)
-            maxClock.add(Math.max(clock1.get(i), clock2.get(i)));
+    @SuppressWarnings("unchecked")
+    private void recover(){
+        long start = System.nanoTime();
+        recovering = true;
+        try{
+            Serializable[] saved = wal.readSnapshot();
+            if(saved != null){
+                state.restore((VectorClock) saved[0], (Map<Integer, VectorClock>) saved[1],
+                        (VectorClock[]) saved[2], (List<Message>) saved[3], (DeltaEncoder) saved[4]);
+                deltaDecoders = (Map<Integer, DeltaDecoder>) saved[5];
+                broadcastEngine = (BirmanSchiperStephenson) saved[6];
+                bufferSize = state.getBufferSize();
+                pendingSize = state.getPendingSize();
+                flowControl.restore(state.getPending());
+            }
 
-        return maxClock;
+            List<WriteAheadLog.Record> records = wal.readLog();
+            for(WriteAheadLog.Record record: records)
+                replay(record);
+
+            logger.info("Recover process " + index + " from " + records.size() + " events in " +
+                    (System.nanoTime() - start) / 1000000 + " ms with state " + state.getTs());
+        }catch (IOException e){
+            logger.error("Failed to recover process " + index + ", write-ahead log disabled");
+            e.printStackTrace();
+            wal.close();
+            wal = null;
+        }finally {
+            recovering = false;
+        }
+    }
+
+    private void replay(WriteAheadLog.Record record){
+        switch (record.getType()){
+            case WriteAheadLog.SEND:
+                Object[] send = (Object[]) record.getPayload();
+                sendGroup((int[]) send[0], (Message) send[1]);
+                break;
+            case WriteAheadLog.BROADCAST:
+                Message broadcast = (Message) record.getPayload();
+                broadcastEngine().stamp(broadcast);
+                deliverBroadcast(broadcast);
+                break;
+            case WriteAheadLog.RECEIVE:
+                Message message = (Message) record.getPayload();
+                message.setReceiveTime(System.nanoTime());
+                receiveMessage(message);
+                break;
+        }
     }
 
     /**
@@ -290,7 +769,139 @@ public class DA_Schiper_Eggli_Sandoz extends UnicastRemoteObject
     }
 
     public void test() throws RemoteException{
-        logger.warn("Test - Process " + index);
+        logger.warn("Test - Process " + index + " delay scheduler: " + scheduler + " buffer size: " + bufferSize + " wal: " + wal +
+                " " + metrics);
+    }
+
+    /**
+     * Stop the process: force and close the delivery log, the write-ahead log and the trace once the
+     * events queued so far ran, and stop accepting remote calls. Later events are neither logged nor traced.
+     * Must not be invoked from an event.
+     */
+    public void close(){
+        eventLoop.executeAndWait(new Runnable() {
+            public void run() {
+                if(deliveryLog != null){
+                    try{
+                        deliveryLog.close();
+                    }catch (IOException e){
+                        logger.error("Failed to close delivery log of process " + index);
+                        e.printStackTrace();
+                    }
+                    deliveryLog = null;
+                }
+                if(wal != null){
+                    wal.close();
+                    wal = null;
+                }
+                if(trace != null){
+                    trace.close();
+                    trace = null;
+                }
+            }
+        });
+
+        try{
+            UnicastRemoteObject.unexportObject(this, true);
+        }catch (NoSuchObjectException e){
+            // not exported, e.g. connected by a LocalTransport
+        }
+        logger.info("Close process " + index);
+    }
+
+    /**
+     * Give back credits for messages of this process a destination delivered.
+     * @param destId index of the destination process
+     * @param credits number of delivered messages
+     * @throws RemoteException
+     */
+    public void grantCredit(int destId, int credits) throws RemoteException{
+        flowControl.grant(destId, credits);
+    }
+
+    /**
+     * @param srcId index of the source process
+     * @return number of messages received from the source and not yet delivered
+     */
+    public int getBacklog(int srcId){
+        return flowControl.getBacklog(srcId);
+    }
+
+    /**
+     * @return number of entries in the local buffer of this process
+     */
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    /**
+     * @return number of messages received but not yet delivered
+     */
+    int getPendingSize(){
+        return pendingSize;
+    }
+
+    /**
+     * @return the most recent messages delivered by this process, in delivery order. Must not be invoked
+     *         while the process is running on other threads.
+     */
+    List<Message> getDeliveredMessages(){
+        return deliveredMessage.toList();
+    }
+
+    /**
+     * Wait until the event loop processed all events queued so far, and their records of the
+     * write-ahead log reached the disk.
+     */
+    void awaitIdle(){
+        eventLoop.executeAndWait(new Runnable() {
+            public void run() {
+            }
+        });
+
+        if(wal != null){
+            try{
+                wal.sync();
+            }catch (IOException e){
+                logger.error("Failed to sync write-ahead log of process " + index);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the timestamp of this process. Must not be invoked while the process is running on other threads.
+     */
+    VectorClock getTimestamp(){
+        return state.getTs();
+    }
+
+    /**
+     * @return the local buffer of this process. Must not be invoked while the process is running on other threads.
+     */
+    Map<Integer, VectorClock> getLocalBuffer(){
+        return state.getLocalBuffer();
+    }
+
+    /**
+     * @return credits left for messages to a destination
+     */
+    int getCredits(int destId){
+        return flowControl.getCredits(destId);
+    }
+
+    /**
+     * @return the trace of this process, null if disabled
+     */
+    TraceRecorder getTrace(){
+        return trace;
+    }
+
+    /**
+     * @return delivery statistics of this process, also registered with JMX
+     */
+    public SESMetrics getMetrics(){
+        return metrics;
     }
 
 }
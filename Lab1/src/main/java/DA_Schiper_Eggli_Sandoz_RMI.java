@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface DA_Schiper_Eggli_Sandoz_RMI extends Remote  {
 
@@ -11,13 +12,52 @@ public interface DA_Schiper_Eggli_Sandoz_RMI extends Remote  {
      */
     void send(int node, Message message) throws RemoteException;
 
+    /**
+     * Send one message to a group of processes, sharing one clock increment and one buffer.
+     * @param nodes indices of the target processes
+     * @param message
+     * @throws RemoteException
+     */
+    void multicast(int[] nodes, Message message) throws RemoteException;
+
+    /**
+     * Send one message to all other processes, in causal order with other broadcasts.
+     * @param message
+     * @throws RemoteException
+     */
+    void broadcast(Message message) throws RemoteException;
+
     /**
      * Receive a process from a remote process. Processes should be delivered in a casual order.
      * @param message message to receive
      */
     void receive(Message message) throws RemoteException;
 
+    /**
+     * Receive several messages from a remote process with one call, each in the same way as receive.
+     * @param messages messages to receive, in the order they were handed to the channel
+     */
+    void receiveBatch(List<Message> messages) throws RemoteException;
+
+    /**
+     * Give back credits of flow control, called by a destination for the messages of this process it delivered.
+     * @param node index of the destination process
+     * @param credits number of delivered messages
+     */
+    void grantCredit(int node, int credits) throws RemoteException;
+
+    /**
+     * Number of messages received from a process and not yet delivered, so senders could adapt their rate.
+     * @param node index of the source process
+     */
+    int getBacklog(int node) throws RemoteException;
+
     void test() throws RemoteException;
 
+    /**
+     * Number of entries in the local buffer, i.e. of processes whose clock is piggybacked on every message.
+     */
+    int getBufferSize() throws RemoteException;
+
     void clear() throws RemoteException;
 }
@@ -0,0 +1,175 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher of delayed receives on a bounded pool of threads, replacing a sleeping thread per message.
+ * Records how late the receives and other timed tasks are fired compared to their due time.
+ *
+ * The timers only hand their messages over: remote calls, which may block on a slow or unreachable
+ * process, run on separate sender threads, so they do not hold up the timers of other processes.
+ * In a simulation the delays are virtual instead, and tasks run on a VirtualScheduler.
+ */
+public class DelayScheduler {
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Runs the remote calls, a thread per call blocked at the same time
+     */
+    private ExecutorService senders;
+
+    /**
+     * Runs the tasks in virtual time, null if they run on the pool
+     */
+    private VirtualScheduler simulator;
+
+    private AtomicLong scheduled = new AtomicLong();
+    private AtomicLong fired = new AtomicLong();
+    private AtomicLong totalLag = new AtomicLong();
+    private AtomicLong maxLag = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param threads number of threads invoking the delayed receives
+     */
+    public DelayScheduler(int threads){
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "delay-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+
+        senders = Executors.newCachedThreadPool(new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sender-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Constructor for a simulation, tasks are fired by the simulator after virtual delays.
+     * @param simulator scheduler with a virtual clock
+     */
+    public DelayScheduler(VirtualScheduler simulator){
+        this.simulator = simulator;
+    }
+
+    /**
+     * Hand a message to the channel of its destination after the delay of the message.
+     * @param channel channel to the destination process
+     * @param message message to be received
+     */
+    public void schedule(MessageBatcher channel, Message message){
+        schedule(new DelayedReceive(channel, message), message.getDelay());
+    }
+
+    /**
+     * Run a task on the pool after a delay.
+     * @param task task to run
+     * @param delay delay in milliseconds
+     */
+    public void schedule(final Runnable task, int delay){
+        scheduled.incrementAndGet();
+        if(simulator != null){
+            // virtual time has no lag, the task is counted once the simulator runs it
+            simulator.schedule(new Runnable() {
+                public void run() {
+                    recordLag(0);
+                    task.run();
+                }
+            }, delay);
+            return;
+        }
+
+        final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+        executor.schedule(new Runnable() {
+            public void run() {
+                recordLag(Math.max(0, System.nanoTime() - due));
+                task.run();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task which may block, e.g. a remote call, on a sender thread rather than on the pool firing the timers.
+     * @param task task to run
+     */
+    public void execute(Runnable task){
+        if(simulator != null)
+            simulator.execute(task);
+        else
+            senders.execute(task);
+    }
+
+    /**
+     * Record the lag of a task fired by the pool or the simulator.
+     * @param lag nanoseconds between the due time and the actual firing
+     */
+    private void recordLag(long lag){
+        fired.incrementAndGet();
+        totalLag.addAndGet(lag);
+
+        long max;
+        while(lag > (max = maxLag.get()) && !maxLag.compareAndSet(max, lag));
+    }
+
+    /**
+     * @return number of receives waiting for their delay to expire or for a free thread
+     */
+    public int getQueueDepth(){
+        if(simulator != null)
+            return (int) (scheduled.get() - fired.get());
+        return executor.getQueue().size();
+    }
+
+    public long getScheduledCount(){
+        return scheduled.get();
+    }
+
+    public long getFiredCount(){
+        return fired.get();
+    }
+
+    /**
+     * @return average scheduling lag in microseconds
+     */
+    public long getAverageLag(){
+        long count = fired.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLag.get() / count);
+    }
+
+    /**
+     * @return maximal scheduling lag in microseconds
+     */
+    public long getMaxLag(){
+        return TimeUnit.NANOSECONDS.toMicros(maxLag.get());
+    }
+
+    public void shutdown(){
+        if(executor != null){
+            executor.shutdownNow();
+            senders.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "scheduled " + getScheduledCount() + " fired " + getFiredCount() + " queue " + getQueueDepth() +
+                " avg lag " + getAverageLag() + "us max lag " + getMaxLag() + "us";
+    }
+}
@@ -1,34 +1,23 @@
-import java.rmi.RemoteException;
-
 /**
- * The class to implement the delay of receiving
+ * The task to implement the delay of receiving, fired by the DelayScheduler
  */
 public class DelayedReceive implements Runnable{
-    /*destination of sending*/
-    private DA_Schiper_Eggli_Sandoz_RMI des;
+    /*channel to the destination of sending*/
+    private MessageBatcher channel;
     private Message message;
 
     /**
-     * Store the destination and message, then invoke method run()
-     * @param des index of destination server
+     * Store the destination and message, then invoke method run() once the delay expires
+     * @param channel channel to the destination server
      * @param message message to be sent
      */
-    public DelayedReceive(DA_Schiper_Eggli_Sandoz_RMI des, Message message){
-        this.des = des;
+    public DelayedReceive(MessageBatcher channel, Message message){
+        this.channel = channel;
         this.message = message;
     }
 
     public void run(){
-        try{
-            Thread.sleep(message.getDelay());
-            des.receive(message);
-        }catch (InterruptedException e){
-            e.printStackTrace();
-        }catch (
-                RemoteException e1) {
-            e1.printStackTrace();
-        }
-
+        channel.add(message);
     }
 
 }
@@ -0,0 +1,142 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Append-only log of delivered messages in a memory-mapped file, so the delivery history
+ * can be audited without keeping it on the heap.
+ *
+ * The file is mapped in segments of fixed size, a new segment is mapped when the current one
+ * is full. Every record starts with its length, a length of 0 marks the end of the log.
+ * Record: length, srcId, destId, delivery time in milliseconds, timestamp size, timestamp entries,
+ * content length (-1 if null), content in UTF-8.
+ */
+public class DeliveryLog {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    /**
+     * Position in the file of the start of the current segment
+     */
+    private long segmentStart;
+
+    /**
+     * Open the log, appending after the existing records.
+     * @param path path of the log file
+     * @throws IOException
+     */
+    public DeliveryLog(String path) throws IOException{
+        file = new RandomAccessFile(new File(path), "rw");
+        channel = file.getChannel();
+
+        // find the end of the existing records
+        long position = 0;
+        while(position + 4 <= file.length()){
+            file.seek(position);
+            int length = file.readInt();
+            if(length == 0)
+                break;
+            position += 4 + length;
+        }
+        map(position);
+    }
+
+    /**
+     * Append a delivered message.
+     * @param message message delivered
+     */
+    public void append(Message message){
+        byte[] content = message.getContent() == null ? null : message.getContent().getBytes(StandardCharsets.UTF_8);
+        VectorClock ts = message.getTs();
+        int length = 4 * 3 + 8 + 4 * ts.size() + 4 + (content == null ? 0 : content.length);
+
+        if(segment.remaining() < 4 + length + 4){
+            if(4 + length + 4 > SEGMENT_SIZE)
+                throw new IllegalArgumentException("Message too large for the delivery log: " + length + " bytes");
+            map(segmentStart + segment.position());
+        }
+
+        segment.putInt(length);
+        segment.putInt(message.getSrcId());
+        segment.putInt(message.getDestId());
+        segment.putLong(System.currentTimeMillis());
+        segment.putInt(ts.size());
+        for(int i = 0; i < ts.size(); i ++)
+            segment.putInt(ts.get(i));
+        if(content == null){
+            segment.putInt(-1);
+        }else{
+            segment.putInt(content.length);
+            segment.put(content);
+        }
+    }
+
+    /**
+     * Flush the written records to disk.
+     */
+    public void force(){
+        segment.force();
+    }
+
+    public void close() throws IOException{
+        segment.force();
+        channel.close();
+        file.close();
+    }
+
+    private void map(long position){
+        try{
+            segmentStart = position;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE);
+        }catch (IOException e){
+            throw new IllegalStateException("Failed to map the delivery log at " + position, e);
+        }
+    }
+
+    /**
+     * Print all records of a delivery log.
+     * @param args path of the log file
+     */
+    public static void main(String args[]) throws IOException{
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+
+        try{
+            while(true){
+                int length = in.readInt();
+                if(length == 0)
+                    break;
+
+                int srcId = in.readInt();
+                int destId = in.readInt();
+                long time = in.readLong();
+                VectorClock ts = new VectorClock(in.readInt());
+                for(int i = 0; i < ts.size(); i ++)
+                    ts.set(i, in.readInt());
+                int contentLength = in.readInt();
+                String content = null;
+                if(contentLength >= 0){
+                    byte[] bytes = new byte[contentLength];
+                    in.readFully(bytes);
+                    content = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                System.out.println(time + " P" + srcId + " -> P" + destId + " ts " + ts + " \"" + content + "\"");
+            }
+        }catch (EOFException e){
+            // end of a log which filled its last segment
+        }finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receiver side of differential buffer piggybacking for the channel from one source.
+ *
+ * Keeps the full buffer of the source as seen through this channel. Messages may arrive
+ * out of order, so differences are applied in sequence order and a message is only handed
+ * out once all earlier messages of the channel arrived. This does not delay any delivery:
+ * a later message of the same channel is causally after the earlier ones anyway.
+ */
+public class DeltaDecoder implements Serializable {
+
+    /**
+     * Sequence number of the next message to apply
+     */
+    private int expected;
+
+    /**
+     * Buffer of the source rebuilt from all differences applied so far
+     */
+    private Map<Integer, VectorClock> view;
+
+    /**
+     * Messages which arrived before their predecessors on the channel
+     */
+    private Map<Integer, Message> stash;
+
+    public DeltaDecoder(){
+        expected = 0;
+        view = new HashMap<Integer, VectorClock>();
+        stash = new HashMap<Integer, Message>();
+    }
+
+    /**
+     * Rebuild the full buffer of a message.
+     * @param message message carrying differences of the buffer
+     * @return messages with full buffers in sending order, empty if predecessors are missing
+     */
+    public List<Message> decode(Message message){
+        List<Message> decoded = new ArrayList<Message>();
+        stash.put(message.getSequence(), message);
+
+        Message next;
+        while((next = stash.remove(expected)) != null){
+            apply(next);
+            decoded.add(next);
+            expected ++;
+        }
+
+        return decoded;
+    }
+
+    private void apply(Message message){
+        for(Map.Entry<Integer, VectorClock> iter: message.getBuffer().entrySet()){
+            VectorClock clock = view.get(iter.getKey());
+            if(iter.getValue() == null)
+                view.remove(iter.getKey());
+            else if(clock == null)
+                view.put(iter.getKey(), new VectorClock(iter.getValue()));
+            else
+                clock.copyFrom(iter.getValue());
+        }
+
+        message.setBuffer(view);
+        message.setDelta(false);
+    }
+
+    public int getStashSize(){
+        return stash.size();
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sender side of differential buffer piggybacking.
+ *
+ * Every change of a local buffer entry is stamped with a version. A message on channel
+ * (current process, destination) only carries the entries changed since the previous
+ * message on that channel, together with a per-channel sequence number which lets the
+ * receiver apply the differences in sending order. Entries dropped from the local buffer are
+ * sent as null, so the receiver drops them as well.
+ */
+public class DeltaEncoder implements Serializable {
+
+    /**
+     * Version of the last change of each local buffer entry
+     */
+    private long[] entryVersion;
+
+    /**
+     * Version of the local buffer when the last message was sent to each destination
+     */
+    private long[] sentVersion;
+
+    /**
+     * Sequence number of the next message to each destination
+     */
+    private int[] sequence;
+
+    private long version;
+
+    public DeltaEncoder(int processNum){
+        entryVersion = new long[processNum];
+        sentVersion = new long[processNum];
+        sequence = new int[processNum];
+        version = 0;
+    }
+
+    /**
+     * Record a change of a local buffer entry, should be invoked after every update of the entry.
+     * @param processId index of the process the entry belongs to
+     */
+    public void touch(int processId){
+        entryVersion[processId] = ++ version;
+    }
+
+    /**
+     * Attach the entries changed since the last message to the destination.
+     * @param destId index of the destination
+     * @param message message to be sent
+     * @param localBuffer local buffer of the sender
+     */
+    public void encode(int destId, Message message, Map<Integer, VectorClock> localBuffer){
+        Map<Integer, VectorClock> delta = new HashMap<Integer, VectorClock>();
+
+        // an entry which changed but is absent was dropped, it is sent as null
+        for(int i = 0; i < entryVersion.length; i ++){
+            if(entryVersion[i] > sentVersion[destId])
+                delta.put(i, localBuffer.get(i));
+        }
+
+        message.setBuffer(delta);
+        message.setDelta(true);
+        message.setSequence(sequence[destId] ++);
+        sentVersion[destId] = version;
+    }
+
+    public void clear(){
+        for(int i = 0; i < entryVersion.length; i ++){
+            entryVersion[i] = 0;
+            sentVersion[i] = 0;
+            sequence[i] = 0;
+        }
+        version = 0;
+    }
+}
@@ -0,0 +1,103 @@
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Mailbox of a process, running its events one at a time.
+ *
+ * Events are queued on a lock-free queue and drained by at most one thread at a time,
+ * so the state of the process is only ever touched by a single writer and needs no locks.
+ * The draining thread is taken from an executor, which may be shared by several processes.
+ * A drain gives its thread back after a bounded number of events, so a busy process does
+ * not starve the others on a shared executor.
+ */
+public class EventLoop {
+
+    final static Logger logger = Logger.getLogger(EventLoop.class);
+
+    private static final int EVENTS_PER_DRAIN = 256;
+
+    private ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Whether a drain of the mailbox is queued on or running in the executor
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private Executor executor;
+
+    private Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param executor executor providing the thread draining the mailbox
+     */
+    public EventLoop(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * Queue an event, it runs after all events queued before it.
+     * @param event event to run on the loop
+     */
+    public void execute(Runnable event){
+        mailbox.offer(event);
+        schedule();
+    }
+
+    /**
+     * Queue an event and wait until it ran, must not be invoked from an event.
+     * @param event event to run on the loop
+     */
+    public void executeAndWait(Runnable event){
+        FutureTask<Void> task = new FutureTask<Void>(event, null);
+        execute(task);
+
+        try{
+            task.get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch (ExecutionException e){
+            throw new IllegalStateException("Event failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return number of events waiting in the mailbox
+     */
+    public int size(){
+        return mailbox.size();
+    }
+
+    private void schedule(){
+        if(scheduled.compareAndSet(false, true))
+            executor.execute(drain);
+    }
+
+    private void drain(){
+        Runnable event;
+        int events = 0;
+        while(events ++ < EVENTS_PER_DRAIN && (event = mailbox.poll()) != null){
+            try{
+                event.run();
+            }catch (RuntimeException e){
+                logger.error("Event failed: " + e);
+                e.printStackTrace();
+            }
+        }
+
+        scheduled.set(false);
+
+        // events left by a bounded drain, or queued after the last poll but before the flag was cleared
+        if(!mailbox.isEmpty())
+            schedule();
+    }
+}
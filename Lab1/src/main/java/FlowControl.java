@@ -0,0 +1,177 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Credit-based flow control between processes, one window per pair of sender and destination.
+ *
+ * A sender holds limit credits per destination and spends one on every message to it, the destination
+ * grants the credit back once it delivered the message. So at most limit messages of a sender are in flight
+ * or pending at a destination: a late causal predecessor can no longer make the pending messages grow
+ * without bound. Credits are taken before a message is stamped, so a sender out of credits never holds back
+ * a message that pending messages wait for.
+ *
+ * Both sides live in this class: the credits this process holds as a sender, and its backlog per source,
+ * i.e. the messages received and not yet delivered, as a destination.
+ */
+public class FlowControl {
+
+    /**
+     * Credits per channel, 0 if flow control is disabled
+     */
+    private int limit;
+
+    /**
+     * Whether a send without credits fails right away instead of waiting for credits
+     */
+    private boolean reject;
+
+    /**
+     * Credits left per destination, created on the first message to it
+     */
+    private ConcurrentMap<Integer, Semaphore> credits;
+
+    /**
+     * Messages received and not yet delivered per source
+     */
+    private ConcurrentMap<Integer, AtomicInteger> backlog;
+
+    /**
+     * Constructor
+     * @param limit credits per channel, 0 to disable flow control
+     * @param reject whether a send without credits fails instead of waiting
+     */
+    public FlowControl(int limit, boolean reject){
+        this.limit = limit;
+        this.reject = reject;
+        credits = new ConcurrentHashMap<Integer, Semaphore>();
+        backlog = new ConcurrentHashMap<Integer, AtomicInteger>();
+    }
+
+    public boolean isEnabled(){
+        return limit > 0;
+    }
+
+    /**
+     * Take one credit for each destination of a message, waiting until all are granted or failing
+     * if sends without credits are rejected.
+     * @param destIds indices of the destination processes
+     * @return false if the message was rejected, no credit is taken then
+     */
+    public boolean acquire(int[] destIds){
+        if(limit <= 0)
+            return true;
+
+        if(!reject){
+            for(int destId: destIds)
+                credits(destId).acquireUninterruptibly();
+            return true;
+        }
+
+        for(int i = 0; i < destIds.length; i ++){
+            if(!credits(destIds[i]).tryAcquire()){
+                for(int j = 0; j < i; j ++)
+                    credits(destIds[j]).release();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Give back credits granted by a destination.
+     * @param destId index of the destination process
+     * @param count number of messages it delivered
+     */
+    public void grant(int destId, int count){
+        if(limit > 0)
+            credits(destId).release(count);
+    }
+
+    /**
+     * @return credits left for a destination
+     */
+    public int getCredits(int destId){
+        return limit <= 0 ? Integer.MAX_VALUE : credits(destId).availablePermits();
+    }
+
+    /**
+     * Count a message received from a source.
+     */
+    public void received(int srcId){
+        AtomicInteger count = backlog.get(srcId);
+        if(count == null){
+            count = new AtomicInteger();
+            AtomicInteger existing = backlog.putIfAbsent(srcId, count);
+            if(existing != null)
+                count = existing;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Count a message delivered from a source.
+     * @return whether a credit has to be granted to the source, false for messages received
+     *         before a restart which were not counted
+     */
+    public boolean delivered(int srcId){
+        AtomicInteger count = backlog.get(srcId);
+        if(count == null)
+            return false;
+
+        int value;
+        do{
+            value = count.get();
+            if(value == 0)
+                return false;
+        }while(!count.compareAndSet(value, value - 1));
+        return true;
+    }
+
+    /**
+     * @return messages received from a source and not yet delivered
+     */
+    public int getBacklog(int srcId){
+        AtomicInteger count = backlog.get(srcId);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Count the pending messages of a restored state as received.
+     * @param pending pending messages of the process
+     */
+    public void restore(List<Message> pending){
+        backlog.clear();
+        for(Message message: pending)
+            received(message.getSrcId());
+    }
+
+    /**
+     * Forget the backlog, e.g. when the pending messages are dropped.
+     * @return per source the credits to grant for the dropped messages
+     */
+    public Map<Integer, Integer> clear(){
+        Map<Integer, Integer> dropped = new HashMap<Integer, Integer>();
+        for(Map.Entry<Integer, AtomicInteger> iter: backlog.entrySet()){
+            int count = iter.getValue().getAndSet(0);
+            if(count > 0)
+                dropped.put(iter.getKey(), count);
+        }
+        return dropped;
+    }
+
+    private Semaphore credits(int destId){
+        Semaphore semaphore = credits.get(destId);
+        if(semaphore == null){
+            semaphore = new Semaphore(limit);
+            Semaphore existing = credits.putIfAbsent(destId, semaphore);
+            if(existing != null)
+                semaphore = existing;
+        }
+        return semaphore;
+    }
+}
@@ -0,0 +1,114 @@
+import org.apache.log4j.Logger;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Transport between processes running in the same JVM, e.g. for load tests with thousands of processes.
+ *
+ * A message is handed to the destination by calling it directly, which puts the message on the
+ * lock-free mailbox of its event loop. Nothing is serialized: the destination receives a shallow copy
+ * of the message, sharing its timestamp, buffer and content with the message of the sender. Neither
+ * process changes those after sending, the destination only sets fields of its own copy, like the
+ * receive time or the buffer rebuilt from a delta.
+ */
+public class LocalTransport implements Transport {
+
+    final static Logger logger = Logger.getLogger(LocalTransport.class);
+
+    private static final int RETRY_DELAY = 10;
+
+    private AtomicReferenceArray<DA_Schiper_Eggli_Sandoz_RMI> processes;
+
+    /**
+     * Constructor
+     * @param processNum number of processes in the system
+     */
+    public LocalTransport(int processNum){
+        processes = new AtomicReferenceArray<DA_Schiper_Eggli_Sandoz_RMI>(processNum);
+    }
+
+    /**
+     * Make a process reachable by the other processes in this JVM.
+     * @param index index of the process
+     * @param process the process
+     */
+    public void register(int index, DA_Schiper_Eggli_Sandoz process){
+        processes.set(index, new Handoff(process));
+    }
+
+    public void prewarm(){
+    }
+
+    public DA_Schiper_Eggli_Sandoz_RMI get(int index){
+        return processes.get(index);
+    }
+
+    public void invalidate(int index, DA_Schiper_Eggli_Sandoz_RMI process){
+        logger.warn("P" + index + " failed to receive a local call");
+    }
+
+    public int backoff(int index){
+        return RETRY_DELAY;
+    }
+
+    public void shutdown(){
+    }
+
+    /**
+     * Hands copies of the messages to a process, so the sender keeps its messages as they were sent
+     */
+    private static class Handoff implements DA_Schiper_Eggli_Sandoz_RMI {
+
+        private DA_Schiper_Eggli_Sandoz process;
+
+        private Handoff(DA_Schiper_Eggli_Sandoz process){
+            this.process = process;
+        }
+
+        public void send(int node, Message message) throws RemoteException{
+            process.send(node, message);
+        }
+
+        public void multicast(int[] nodes, Message message) throws RemoteException{
+            process.multicast(nodes, message);
+        }
+
+        public void broadcast(Message message) throws RemoteException{
+            process.broadcast(message);
+        }
+
+        public void receive(Message message) throws RemoteException{
+            process.receive(message.copyFor(message.getDestId()));
+        }
+
+        public void receiveBatch(List<Message> messages) throws RemoteException{
+            List<Message> copies = new ArrayList<Message>(messages.size());
+            for(Message message: messages)
+                copies.add(message.copyFor(message.getDestId()));
+            process.receiveBatch(copies);
+        }
+
+        public void grantCredit(int node, int credits) throws RemoteException{
+            process.grantCredit(node, credits);
+        }
+
+        public int getBacklog(int node) throws RemoteException{
+            return process.getBacklog(node);
+        }
+
+        public void test() throws RemoteException{
+            process.test();
+        }
+
+        public int getBufferSize() throws RemoteException{
+            return process.getBufferSize();
+        }
+
+        public void clear() throws RemoteException{
+            process.clear();
+        }
+    }
+}
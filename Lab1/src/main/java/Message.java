@@ -1,23 +1,46 @@
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.*;
 
-public class Message implements Serializable {
+/**
+ * A message of the Schiper-Eggli-Sandoz algorithm.
+ *
+ * Serialized in a hand-written format rather than with Java serialization, which writes an object
+ * per clock and per buffer key: see writeExternal.
+ */
+public class Message implements Externalizable {
+
+    private static final int DELTA = 1;
+    private static final int BROADCAST = 2;
 
     private int destId;                         // id of destination process
     private int srcId;                          // id of source process
     private int delay;                          // the delay for receiving current message
+    private int sequence;                       // sequence number on the channel from source to destination
+    private boolean delta;                      // whether buffer only holds entries changed since the last message
+    private boolean broadcast;                  // whether ts is a Birman-Schiper-Stephenson broadcast clock
+    private transient long receiveTime;         // time in nanoseconds the destination received the message
 
     private String content;                     // content of message
-    private List<Integer> ts;
-    private Map<Integer, List<Integer>> buffer;
+    private VectorClock ts;
+    private Map<Integer, VectorClock> buffer;
 
     public Message(int srcId, int destId, int delay){
         this.destId = destId;
         this.srcId = srcId;
         this.delay = delay;
 
-        ts = new ArrayList<Integer>();
-        buffer = new HashMap<Integer, List<Integer>>();
+        ts = new VectorClock(0);
+        buffer = new HashMap<Integer, VectorClock>();
+    }
+
+    /**
+     * Constructor for deserialization only
+     */
+    public Message(){
+        this(0, 0, 0);
     }
 
     public int getSrcId() {
@@ -32,6 +55,55 @@ public class Message implements Serializable {
         this.delay = delay;
     }
 
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    public void setReceiveTime(long receiveTime) {
+        this.receiveTime = receiveTime;
+    }
+
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    public void setBroadcast(boolean broadcast) {
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * Create the copy of a multicast message for one destination, or a copy handed to the destination.
+     * The copy shares content, timestamp and buffer with this message, none of them is modified after sending.
+     * @param destId id of destination process
+     * @return a message to destId
+     */
+    public Message copyFor(int destId) {
+        Message copy = new Message(srcId, destId, delay);
+        copy.sequence = sequence;
+        copy.delta = delta;
+        copy.broadcast = broadcast;
+        copy.content = content;
+        copy.ts = ts;
+        copy.buffer = buffer;
+        return copy;
+    }
+
     public int getDestId() {
         return destId;
     }
@@ -44,25 +116,72 @@ public class Message implements Serializable {
         this.content = new String(content);
     }
 
-    public Map<Integer, List<Integer>> getBuffer() {
+    public Map<Integer, VectorClock> getBuffer() {
         return buffer;
     }
 
-    public void setBuffer(Map<Integer, List<Integer>> buffer) {
-        this.buffer.clear();
+    public void setBuffer(Map<Integer, VectorClock> buffer) {
+        // replace rather than clear, the old map may be shared with copies for other destinations
+        this.buffer = new HashMap<Integer, VectorClock>();
+
+        for(Map.Entry<Integer, VectorClock> iter: buffer.entrySet())
+            this.buffer.put(iter.getKey(), iter.getValue() == null ? null : new VectorClock(iter.getValue()));
+    }
 
-        for(Map.Entry<Integer, List<Integer>> iter: buffer.entrySet())
-            this.buffer.put(new Integer(iter.getKey()), Util.copyList(iter.getValue()));
+    /**
+     * Attach a buffer without copying it. Neither the map nor its clocks may be changed after sending.
+     * @param buffer buffer of the message
+     */
+    public void attachBuffer(Map<Integer, VectorClock> buffer) {
+        this.buffer = buffer;
     }
 
-    public List<Integer> getTs() {
+    public VectorClock getTs() {
         return ts;
     }
 
-    public void setTs(List<Integer> clock) {
-        this.ts.clear();
+    public void setTs(VectorClock clock) {
+        this.ts = new VectorClock(clock);
+    }
+
+    /**
+     * Write the message as varints: ids, delay, sequence, flags, content, timestamp, then the
+     * number of buffer entries and per entry its process and its clock relative to the timestamp.
+     * A null clock in the buffer, a dropped entry of a delta, is written as such.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireFormat.writeVarInt(out, srcId);
+        WireFormat.writeVarInt(out, destId);
+        WireFormat.writeVarInt(out, delay);
+        WireFormat.writeVarInt(out, sequence);
+        out.writeByte((delta ? DELTA : 0) | (broadcast ? BROADCAST : 0));
+        WireFormat.writeString(out, content);
+        WireFormat.writeClock(out, ts, null);
+
+        WireFormat.writeVarInt(out, buffer.size());
+        for(Map.Entry<Integer, VectorClock> iter: buffer.entrySet()){
+            WireFormat.writeVarInt(out, iter.getKey());
+            WireFormat.writeClock(out, iter.getValue(), ts);
+        }
+    }
 
-        this.ts = Util.copyList(clock);
+    public void readExternal(ObjectInput in) throws IOException {
+        srcId = WireFormat.readVarInt(in);
+        destId = WireFormat.readVarInt(in);
+        delay = WireFormat.readVarInt(in);
+        sequence = WireFormat.readVarInt(in);
+        int flags = in.readByte();
+        delta = (flags & DELTA) != 0;
+        broadcast = (flags & BROADCAST) != 0;
+        content = WireFormat.readString(in);
+        ts = WireFormat.readClock(in, null);
+
+        int entries = WireFormat.readVarInt(in);
+        buffer = new HashMap<Integer, VectorClock>(entries * 4 / 3 + 1);
+        for(int i = 0; i < entries; i ++){
+            int key = WireFormat.readVarInt(in);
+            buffer.put(key, WireFormat.readClock(in, ts));
+        }
     }
 
     @Override
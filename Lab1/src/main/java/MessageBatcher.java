@@ -0,0 +1,194 @@
+import org.apache.log4j.Logger;
+
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Outgoing channel to one destination process.
+ *
+ * Messages whose delay expired are collected and handed to the destination with one
+ * receiveBatch call once batchSize messages are collected or lingerTime passed since the
+ * first message of the batch. With a batch size of 1 every message is received on its own.
+ *
+ * Complete batches are queued and sent one at a time by a sender of the DelayScheduler, so the timers
+ * never wait for the destination and a slow destination only delays the messages to it. The timers only
+ * start the sender: incomplete batches are flushed and failed calls retried on the sender as well. While
+ * a failed batch waits for its retry, the later batches wait behind it, so batches arrive in order.
+ */
+public class MessageBatcher {
+
+    final static Logger logger = Logger.getLogger(MessageBatcher.class);
+
+    private int destId;
+    private Transport transport;
+    private DelayScheduler scheduler;
+    private int batchSize;
+    private int lingerTime;
+
+    private List<Message> batch;
+    private boolean flushScheduled;
+
+    /**
+     * Batches waiting for the sender
+     */
+    private Queue<List<Message>> outbox;
+
+    /**
+     * Whether a sender is draining the outbox
+     */
+    private boolean sending;
+
+    /**
+     * Constructor
+     * @param destId index of the destination process
+     * @param transport transport reaching all processes
+     * @param scheduler scheduler used to flush incomplete batches and retry failed calls
+     * @param batchSize maximal number of messages per remote call
+     * @param lingerTime maximal time in milliseconds a message waits for its batch to fill up
+     */
+    public MessageBatcher(int destId, Transport transport, DelayScheduler scheduler, int batchSize, int lingerTime){
+        this.destId = destId;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.batchSize = batchSize;
+        this.lingerTime = lingerTime;
+        this.batch = new ArrayList<Message>();
+        this.outbox = new ArrayDeque<List<Message>>();
+    }
+
+    /**
+     * Hand a message to the destination, possibly together with other messages.
+     * @param message message to be received
+     */
+    public void add(Message message){
+        if(batchSize <= 1){
+            List<Message> messages = new ArrayList<Message>(1);
+            messages.add(message);
+            send(messages);
+            return;
+        }
+
+        boolean full;
+        synchronized (this){
+            batch.add(message);
+            full = batch.size() >= batchSize;
+
+            if(!full && !flushScheduled){
+                flushScheduled = true;
+                scheduler.schedule(new Runnable() {
+                    public void run() {
+                        scheduler.execute(new Runnable() {
+                            public void run() {
+                                flush();
+                            }
+                        });
+                    }
+                }, lingerTime);
+            }
+        }
+
+        if(full)
+            flush();
+    }
+
+    /**
+     * Queue all collected messages for one remote call.
+     */
+    public void flush(){
+        List<Message> messages;
+        synchronized (this){
+            flushScheduled = false;
+            if(batch.isEmpty())
+                return;
+
+            messages = batch;
+            batch = new ArrayList<Message>();
+        }
+
+        send(messages);
+    }
+
+    /**
+     * Queue a batch for the sender, starting it unless it is draining the outbox already.
+     */
+    private void send(List<Message> messages){
+        synchronized (this){
+            outbox.add(messages);
+            if(sending)
+                return;
+            sending = true;
+        }
+
+        startSender();
+    }
+
+    private void startSender(){
+        scheduler.execute(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Send the queued batches one at a time until the outbox is empty, or until a batch could not be
+     * handed over. The sender then stops and is started again by the timer of the retry. Runs on a sender thread.
+     */
+    private void drain(){
+        while(true){
+            List<Message> messages;
+            synchronized (this){
+                messages = outbox.peek();
+                if(messages == null){
+                    sending = false;
+                    return;
+                }
+            }
+
+            if(!dispatch(messages))
+                return;
+
+            synchronized (this){
+                outbox.remove();
+            }
+        }
+    }
+
+    /**
+     * Hand messages to the destination. If the destination could not be reached, the sender is started
+     * again after a backoff, while the transport connects to the destination again.
+     * @return false if the messages are to be handed again
+     */
+    private boolean dispatch(List<Message> messages){
+        DA_Schiper_Eggli_Sandoz_RMI des = transport.get(destId);
+
+        try{
+            if(des == null)
+                throw new ConnectException("P" + destId + " is not resolved yet");
+
+            if(messages.size() == 1)
+                des.receive(messages.get(0));
+            else
+                des.receiveBatch(messages);
+        }catch (RemoteException e){
+            if(!StubCache.isNotExecuted(e)){
+                logger.error("Failed to send " + messages.size() + " messages to P" + destId);
+                e.printStackTrace();
+                return true;
+            }
+
+            transport.invalidate(destId, des);
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    startSender();
+                }
+            }, transport.backoff(destId));
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ring buffer keeping the most recent messages of a history.
+ * The ring grows with the messages added, once the capacity is reached adding a message drops the oldest one.
+ */
+public class MessageHistory {
+
+    private static final int INITIAL_SIZE = 16;
+
+    private Message[] messages;
+
+    private int capacity;
+
+    /**
+     * Position of the next message to write
+     */
+    private int next;
+
+    /**
+     * Number of messages ever added since the last clear
+     */
+    private long total;
+
+    /**
+     * Constructor
+     * @param capacity maximal number of messages kept in memory
+     */
+    public MessageHistory(int capacity){
+        this.capacity = Math.max(1, capacity);
+        messages = new Message[Math.min(this.capacity, INITIAL_SIZE)];
+    }
+
+    public void add(Message message){
+        // a full ring smaller than the capacity grows, its messages stay in order from the start
+        if(total == messages.length && messages.length < capacity){
+            messages = Arrays.copyOf(messages, (int) Math.min(capacity, 2L * messages.length));
+            next = (int) total;
+        }
+
+        messages[next] = message;
+        next = (next + 1) % messages.length;
+        total ++;
+    }
+
+    /**
+     * @return number of messages kept in memory
+     */
+    public int size(){
+        return (int) Math.min(total, messages.length);
+    }
+
+    /**
+     * @return number of messages added, including those dropped
+     */
+    public long getTotal(){
+        return total;
+    }
+
+    /**
+     * @return the messages kept in memory, oldest first
+     */
+    public List<Message> toList(){
+        List<Message> list = new ArrayList<Message>();
+        int size = size();
+        int first = (next - size + messages.length) % messages.length;
+
+        for(int i = 0; i < size; i ++)
+            list.add(messages[(first + i) % messages.length]);
+
+        return list;
+    }
+
+    public void clear(){
+        messages = new Message[Math.min(capacity, INITIAL_SIZE)];
+        next = 0;
+        total = 0;
+    }
+}
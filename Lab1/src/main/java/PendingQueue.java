@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Messages received by a process but not yet deliverable.
+ *
+ * Every pending message is parked on the first entry of the local clock that blocks it,
+ * i.e. the first i with buffer(index)[i] > ts[i]. When the local clock advances on entry i
+ * only the messages parked on i are checked again, instead of the whole pending list.
+ * Messages that became deliverable are handed out in arrival order, which is the order
+ * in which a linear scan of the pending list would find them.
+ */
+public class PendingQueue {
+
+    /**
+     * A pending message together with its arrival number and the clock value it waits for.
+     */
+    private static class Entry {
+        private Message message;
+        private long arrival;
+        private int blockingEntry;
+        private int required;
+
+        private Entry(Message message, long arrival){
+            this.message = message;
+            this.arrival = arrival;
+            this.blockingEntry = 0;
+        }
+    }
+
+    /**
+     * The index of the process owning this queue
+     */
+    private int index;
+
+    /**
+     * Per clock entry, the messages blocked on it ordered by the clock value they wait for.
+     * Only entries which block a message have a queue, so an idle process costs no memory per process of the system.
+     */
+    private Map<Integer, PriorityQueue<Entry>> blocked;
+
+    private Comparator<Entry> byRequired;
+
+    /**
+     * Messages which could be delivered, ordered by arrival.
+     */
+    private PriorityQueue<Entry> ready;
+
+    private long arrivals;
+
+    private int size;
+
+    public PendingQueue(int processNum, int index){
+        this.index = index;
+
+        blocked = new HashMap<Integer, PriorityQueue<Entry>>();
+        byRequired = new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                if(e1.required != e2.required)
+                    return Integer.compare(e1.required, e2.required);
+                return Long.compare(e1.arrival, e2.arrival);
+            }
+        };
+
+        ready = new PriorityQueue<Entry>(11, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e1.arrival, e2.arrival);
+            }
+        });
+    }
+
+    /**
+     * Add a message which could not be delivered at current state.
+     * @param message message to postpone
+     * @param ts current timestamp of the process
+     */
+    public void add(Message message, VectorClock ts){
+        size ++;
+        park(new Entry(message, arrivals ++), ts);
+    }
+
+    /**
+     * Recheck the messages blocked on one entry of the local clock, should be invoked
+     * whenever that entry increases.
+     * @param entry index of the clock entry which increased
+     * @param ts current timestamp of the process
+     */
+    public void advance(int entry, VectorClock ts){
+        PriorityQueue<Entry> queue = blocked.get(entry);
+        if(queue == null)
+            return;
+        int value = ts.get(entry);
+
+        while(!queue.isEmpty() && queue.peek().required <= value)
+            park(queue.poll(), ts);
+    }
+
+    /**
+     * Retrieve the earliest received message which could be delivered right away.
+     * @return Message if a pending message is deliverable
+     *         null if all messages in pending list could not be delivered
+     */
+    public Message poll(){
+        Entry entry = ready.poll();
+        if(entry == null)
+            return null;
+
+        size --;
+        return entry.message;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * @return all pending messages in arrival order, adding them to an empty queue in this order restores the queue
+     */
+    public List<Message> toList(){
+        List<Entry> entries = new ArrayList<Entry>(ready);
+        for(PriorityQueue<Entry> queue: blocked.values())
+            entries.addAll(queue);
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e1.arrival, e2.arrival);
+            }
+        });
+
+        List<Message> messages = new ArrayList<Message>(entries.size());
+        for(Entry entry: entries)
+            messages.add(entry.message);
+        return messages;
+    }
+
+    public void clear(){
+        blocked.clear();
+        ready.clear();
+        size = 0;
+    }
+
+    /**
+     * Put a message on the queue of the entry blocking it, or on the ready queue.
+     * Clock entries only grow, so the entries before the previous blocking one are still satisfied.
+     */
+    private void park(Entry entry, VectorClock ts){
+        VectorClock messageClock = entry.message.getBuffer().get(index);
+
+        if(messageClock != null){
+            int i = messageClock.firstGreater(ts, entry.blockingEntry);
+            if(i != -1){
+                entry.blockingEntry = i;
+                entry.required = messageClock.get(i);
+                PriorityQueue<Entry> queue = blocked.get(i);
+                if(queue == null){
+                    queue = new PriorityQueue<Entry>(11, byRequired);
+                    blocked.put(i, queue);
+                }
+                queue.add(entry);
+                return;
+            }
+        }
+
+        ready.add(entry);
+    }
+
+    @Override
+    public String toString(){
+        return "pending " + size + " ready " + ready.size();
+    }
+}
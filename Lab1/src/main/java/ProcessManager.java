@@ -14,7 +14,7 @@ public class ProcessManager {
     final static Logger logger = Logger.getLogger(ProcessManager.class);
     private static String prefix = "rmi://";
 
-    public static String[] readConfiguration(){
+    public static PropertiesConfiguration loadConfiguration(){
         // initialize node property
         PropertiesConfiguration config = new PropertiesConfiguration();
         try{
@@ -27,8 +27,11 @@ public class ProcessManager {
             e2.printStackTrace();
         }
 
+        return config;
+    }
 
-        String[] urls = config.getStringArray("node_url");
+    public static String[] readConfiguration(){
+        String[] urls = loadConfiguration().getStringArray("node_url");
         logger.info("read url : " +  urls[0]);
         return urls;
     }
@@ -40,10 +43,16 @@ public class ProcessManager {
         String[] urls = readConfiguration();
 
         try {
-            DA_Schiper_Eggli_Sandoz process = new DA_Schiper_Eggli_Sandoz(urls.length, index);
+            final DA_Schiper_Eggli_Sandoz process = new DA_Schiper_Eggli_Sandoz(urls.length, index);
             logger.info("create server at" + urls[index]);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    process.close();
+                }
+            }));
             new Thread(process).start();
             Naming.bind("rmi://localhost/SES", process);
+            process.prewarm();
 
         }catch (RemoteException e1) {
             e1.printStackTrace();
@@ -0,0 +1,164 @@
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Delivery statistics of one process: the delay between receiving and delivering a message,
+ * the number of pending messages when a message arrives, and the number of pending messages
+ * delivered right after a message which arrived. Registered with the platform MBean server as
+ * DA:type=SES,process=index.
+ */
+public class SESMetrics implements SESMetricsMBean {
+
+    final static Logger logger = Logger.getLogger(SESMetrics.class);
+
+    private DA_Schiper_Eggli_Sandoz process;
+    private DelayScheduler scheduler;
+    private EventLoop eventLoop;
+
+    private LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private LatencyHistogram pendingDepth = new LatencyHistogram();
+    private LatencyHistogram unblocked = new LatencyHistogram();
+    private AtomicLong postponed = new AtomicLong();
+
+    public SESMetrics(DA_Schiper_Eggli_Sandoz process, DelayScheduler scheduler, EventLoop eventLoop){
+        this.process = process;
+        this.scheduler = scheduler;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Register the statistics with the platform MBean server, replacing the statistics of an earlier
+     * process with the same index in this JVM.
+     * @param index index of the process
+     */
+    public void register(int index){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("DA:type=SES,process=" + index);
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }catch (Exception e){
+            logger.error("Failed to register statistics of process " + index + ": " + e);
+        }
+    }
+
+    /**
+     * @param latency nanoseconds between receiving and delivering a message
+     */
+    public void recordDelivery(long latency){
+        deliveryLatency.record(TimeUnit.NANOSECONDS.toMicros(latency));
+    }
+
+    /**
+     * @param depth number of pending messages when a message arrived
+     */
+    public void recordArrival(int depth){
+        pendingDepth.record(depth);
+    }
+
+    public void recordPostponed(){
+        postponed.incrementAndGet();
+    }
+
+    /**
+     * @param count number of pending messages delivered after a message which arrived
+     */
+    public void recordUnblocked(int count){
+        unblocked.record(count);
+    }
+
+    public long getDeliveredCount() {
+        return deliveryLatency.getCount();
+    }
+
+    public long getPostponedCount() {
+        return postponed.get();
+    }
+
+    public long getDeliveryLatencyP50() {
+        return deliveryLatency.getPercentile(50);
+    }
+
+    public long getDeliveryLatencyP90() {
+        return deliveryLatency.getPercentile(90);
+    }
+
+    public long getDeliveryLatencyP99() {
+        return deliveryLatency.getPercentile(99);
+    }
+
+    public long getDeliveryLatencyP999() {
+        return deliveryLatency.getPercentile(99.9);
+    }
+
+    public long getDeliveryLatencyMax() {
+        return deliveryLatency.getMax();
+    }
+
+    public long getPendingDepthAtArrivalP50() {
+        return pendingDepth.getPercentile(50);
+    }
+
+    public long getPendingDepthAtArrivalP99() {
+        return pendingDepth.getPercentile(99);
+    }
+
+    public long getPendingDepthAtArrivalMax() {
+        return pendingDepth.getMax();
+    }
+
+    public long getUnblockedPerDeliveryP50() {
+        return unblocked.getPercentile(50);
+    }
+
+    public long getUnblockedPerDeliveryP99() {
+        return unblocked.getPercentile(99);
+    }
+
+    public long getUnblockedPerDeliveryMax() {
+        return unblocked.getMax();
+    }
+
+    public int getPendingSize() {
+        return process.getPendingSize();
+    }
+
+    public int getBufferSize() {
+        return process.getBufferSize();
+    }
+
+    public int getEventLoopQueueSize() {
+        return eventLoop.size();
+    }
+
+    public int getDelayQueueDepth() {
+        return scheduler.getQueueDepth();
+    }
+
+    public long getDelayLagAverage() {
+        return scheduler.getAverageLag();
+    }
+
+    public long getDelayLagMax() {
+        return scheduler.getMaxLag();
+    }
+
+    public void reset() {
+        deliveryLatency.reset();
+        pendingDepth.reset();
+        unblocked.reset();
+        postponed.set(0);
+    }
+
+    @Override
+    public String toString(){
+        return "delivery latency (us) " + deliveryLatency + ", pending depth at arrival " + pendingDepth +
+                ", unblocked per delivery " + unblocked;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Management interface of the delivery statistics of one process, exposed through JMX.
+ * Latencies are in microseconds.
+ */
+public interface SESMetricsMBean {
+
+    long getDeliveredCount();
+
+    long getPostponedCount();
+
+    long getDeliveryLatencyP50();
+
+    long getDeliveryLatencyP90();
+
+    long getDeliveryLatencyP99();
+
+    long getDeliveryLatencyP999();
+
+    long getDeliveryLatencyMax();
+
+    long getPendingDepthAtArrivalP50();
+
+    long getPendingDepthAtArrivalP99();
+
+    long getPendingDepthAtArrivalMax();
+
+    long getUnblockedPerDeliveryP50();
+
+    long getUnblockedPerDeliveryP99();
+
+    long getUnblockedPerDeliveryMax();
+
+    int getPendingSize();
+
+    int getBufferSize();
+
+    int getEventLoopQueueSize();
+
+    int getDelayQueueDepth();
+
+    long getDelayLagAverage();
+
+    long getDelayLagMax();
+
+    /**
+     * Clear all histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,178 @@
+import org.apache.log4j.Logger;
+
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Cache of the stubs of all processes listed in url.properties.
+ *
+ * All processes are looked up in parallel when the cache is prewarmed, so the first message
+ * to a process does not wait for the registry. A failed lookup, or a stub invalidated after a
+ * failed call, is looked up again in the background with exponential backoff.
+ */
+public class StubCache implements Transport {
+
+    final static Logger logger = Logger.getLogger(StubCache.class);
+
+    private static final int MIN_BACKOFF = 100;
+    private static final int MAX_BACKOFF = 10000;
+
+    private String[] urls;
+
+    private ConcurrentMap<Integer, DA_Schiper_Eggli_Sandoz_RMI> stubs;
+
+    /**
+     * Number of failed attempts since the last successful lookup, per process
+     */
+    private AtomicIntegerArray failures;
+
+    /**
+     * Whether a lookup of a process is queued or running
+     */
+    private AtomicIntegerArray resolving;
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Constructor
+     * @param urls urls of all processes, indexed by process
+     * @param threads number of threads looking up processes in parallel
+     */
+    public StubCache(String[] urls, int threads){
+        this.urls = urls;
+        stubs = new ConcurrentHashMap<Integer, DA_Schiper_Eggli_Sandoz_RMI>();
+        failures = new AtomicIntegerArray(urls.length);
+        resolving = new AtomicIntegerArray(urls.length);
+
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lookup-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start looking up all processes in parallel, failed lookups are retried until they succeed.
+     */
+    public void prewarm(){
+        for(int i = 0; i < urls.length; i ++)
+            resolve(i, 0);
+    }
+
+    /**
+     * Wait until all processes are resolved or the timeout expires.
+     * @param timeout timeout in milliseconds
+     * @return true if all processes are resolved
+     */
+    public boolean awaitAll(long timeout) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + timeout;
+        while(stubs.size() < urls.length){
+            if(System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Get the stub of a process.
+     * @param index index of the process
+     * @return the stub, null if the process is not resolved yet; a lookup is then started
+     */
+    public DA_Schiper_Eggli_Sandoz_RMI get(int index){
+        DA_Schiper_Eggli_Sandoz_RMI stub = stubs.get(index);
+        if(stub == null)
+            resolve(index, 0);
+        return stub;
+    }
+
+    /**
+     * Drop a stub after a failed call and look the process up again.
+     * @param index index of the process
+     * @param stub the stub which failed, nothing happens if it was replaced already
+     */
+    public void invalidate(int index, DA_Schiper_Eggli_Sandoz_RMI stub){
+        if(stub != null && stubs.remove(index, stub)){
+            logger.warn("Reconnect to P" + index);
+            resolve(index, backoff(index));
+        }
+    }
+
+    /**
+     * @param index index of the process
+     * @return time in milliseconds to wait before the next attempt to reach the process
+     */
+    public int backoff(int index){
+        int attempts = Math.min(failures.get(index), 16);
+        return (int) Math.min(MAX_BACKOFF, (long) MIN_BACKOFF << attempts);
+    }
+
+    /**
+     * Check whether a failed call surely did not reach the remote process, so it could be repeated
+     * without delivering a message twice.
+     * @param e exception thrown by the call
+     */
+    public static boolean isNotExecuted(RemoteException e){
+        return e instanceof ConnectException || e instanceof ConnectIOException ||
+                e instanceof NoSuchObjectException || e instanceof UnknownHostException;
+    }
+
+    public int getResolvedCount(){
+        return stubs.size();
+    }
+
+    public void shutdown(){
+        executor.shutdownNow();
+    }
+
+    private void resolve(final int index, int delay){
+        if(!resolving.compareAndSet(index, 0, 1))
+            return;
+
+        executor.schedule(new Runnable() {
+            public void run() {
+                lookup(index);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void lookup(int index){
+        try{
+            DA_Schiper_Eggli_Sandoz_RMI stub = (DA_Schiper_Eggli_Sandoz_RMI) Naming.lookup(urls[index]);
+            stubs.put(index, stub);
+            failures.set(index, 0);
+            resolving.set(index, 0);
+            logger.info("Resolved P" + index + " at " + urls[index]);
+            return;
+        }catch (RemoteException e1){
+            logger.warn("Failed to look up P" + index + ": " + e1.getMessage());
+        }catch (NotBoundException e2){
+            logger.warn("P" + index + " is not bound at " + urls[index]);
+        }catch (MalformedURLException e3){
+            logger.error("Malformed url of P" + index + ": " + urls[index]);
+            resolving.set(index, 0);
+            return;
+        }
+
+        failures.incrementAndGet(index);
+        resolving.set(index, 0);
+        resolve(index, backoff(index));
+    }
+}
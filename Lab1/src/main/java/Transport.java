@@ -0,0 +1,35 @@
+/**
+ * Way to reach the other processes of the system.
+ *
+ * The processes are reached through the RMI interface in both cases, so the algorithm does not
+ * depend on whether they run in other JVMs (StubCache) or in the same JVM (LocalTransport).
+ */
+public interface Transport {
+
+    /**
+     * Start connecting to all processes.
+     */
+    void prewarm();
+
+    /**
+     * Get a process.
+     * @param index index of the process
+     * @return the process, null if it could not be reached yet
+     */
+    DA_Schiper_Eggli_Sandoz_RMI get(int index);
+
+    /**
+     * Drop a process after a failed call and connect to it again.
+     * @param index index of the process
+     * @param process the process which failed
+     */
+    void invalidate(int index, DA_Schiper_Eggli_Sandoz_RMI process);
+
+    /**
+     * @param index index of the process
+     * @return time in milliseconds to wait before the next attempt to reach the process
+     */
+    int backoff(int index);
+
+    void shutdown();
+}
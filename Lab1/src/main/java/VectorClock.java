@@ -0,0 +1,129 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Vector clock backed by a primitive array.
+ * All operations work in place, so updating a clock does not allocate.
+ */
+public class VectorClock implements Serializable {
+
+    private int[] clock;
+
+    /**
+     * Create a clock with all entries set to 0
+     * @param size number of processes in the system
+     */
+    public VectorClock(int size){
+        clock = new int[size];
+    }
+
+    /**
+     * Create a copy of another clock
+     * @param other clock to copy
+     */
+    public VectorClock(VectorClock other){
+        clock = Arrays.copyOf(other.clock, other.clock.length);
+    }
+
+    public int size(){
+        return clock.length;
+    }
+
+    /**
+     * @return the array backing this clock, not a copy, so it must not be modified
+     */
+    public int[] entries(){
+        return clock;
+    }
+
+    public int get(int index){
+        return clock[index];
+    }
+
+    public void set(int index, int value){
+        clock[index] = value;
+    }
+
+    /**
+     * Increase the entry of a process by 1.
+     * @param index index of the process
+     */
+    public void increment(int index){
+        clock[index] ++;
+    }
+
+    /**
+     * Overwrite this clock with the values of another clock of the same size.
+     * @param other
+     */
+    public void copyFrom(VectorClock other){
+        System.arraycopy(other.clock, 0, clock, 0, clock.length);
+    }
+
+    /**
+     * Set every entry to the maximum of this clock and another clock.
+     * Comparison is made between values with same index.
+     * @param other
+     * @return true if any entry of this clock increased
+     */
+    public boolean merge(VectorClock other){
+        boolean changed = false;
+        for(int i = 0; i < clock.length; i ++){
+            if(other.clock[i] > clock[i]){
+                clock[i] = other.clock[i];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Check whether every entry of this clock is smaller than or equal to the entry of another clock.
+     * @param other
+     * @return true if this clock is dominated by the other clock
+     */
+    public boolean isLessOrEqual(VectorClock other){
+        return firstGreater(other, 0) == -1;
+    }
+
+    /**
+     * Find the first entry from a given index on which this clock is larger than another clock.
+     * @param other
+     * @param from index to start searching
+     * @return the index of the entry
+     *         -1 if no such entry exists
+     */
+    public int firstGreater(VectorClock other, int from){
+        for(int i = from; i < clock.length; i ++){
+            if(clock[i] > other.clock[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Set all entries to 0.
+     */
+    public void reset(){
+        Arrays.fill(clock, 0);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o)
+            return true;
+        if(!(o instanceof VectorClock))
+            return false;
+        return Arrays.equals(clock, ((VectorClock) o).clock);
+    }
+
+    @Override
+    public int hashCode(){
+        return Arrays.hashCode(clock);
+    }
+
+    @Override
+    public String toString(){
+        return Arrays.toString(clock);
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact encoding of the numbers, strings and clocks of a message.
+ *
+ * Numbers are written as varints, 7 bits per byte, so small numbers take one byte. A clock is
+ * written relative to a base clock of the same size, e.g. an entry of the buffer relative to the
+ * timestamp of the message: entries of the buffer are close to the timestamp, so most differences
+ * are 0 or small. A clock with few differences from its base only lists the entries which differ.
+ */
+public final class WireFormat {
+
+    private WireFormat(){
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException{
+        while((value & ~0x7f) != 0){
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException{
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Write a number which may be negative, small negative numbers take one byte as well.
+     */
+    public static void writeSignedVarInt(DataOutput out, int value) throws IOException{
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarInt(DataInput in) throws IOException{
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Write a string in UTF-8, which may be null.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException{
+        if(value == null){
+            writeVarInt(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException{
+        int length = readVarInt(in) - 1;
+        if(length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a clock, which may be null.
+     * Header: 0 for null, otherwise (size + 1) << 1, plus 1 if only the entries differing from the base follow.
+     * Then either every entry as difference to the base, or the number of differing entries followed by
+     * the distance to the previous differing entry and the difference of each.
+     * @param clock clock to write
+     * @param base base of the differences, used only if it has the same size, null for differences to 0
+     */
+    public static void writeClock(DataOutput out, VectorClock clock, VectorClock base) throws IOException{
+        if(clock == null){
+            writeVarInt(out, 0);
+            return;
+        }
+
+        int size = clock.size();
+        int[] entries = clock.entries();
+        int[] baseEntries = base != null && base.size() == size ? base.entries() : null;
+
+        int differences = 0;
+        for(int i = 0; i < size; i ++){
+            if(entries[i] != (baseEntries == null ? 0 : baseEntries[i]))
+                differences ++;
+        }
+
+        // a sparse entry takes about two bytes, a dense one at least one
+        boolean sparse = differences * 2 < size;
+        writeVarInt(out, ((size + 1) << 1) | (sparse ? 1 : 0));
+
+        if(sparse){
+            writeVarInt(out, differences);
+            int previous = -1;
+            for(int i = 0; i < size; i ++){
+                int difference = entries[i] - (baseEntries == null ? 0 : baseEntries[i]);
+                if(difference != 0){
+                    writeVarInt(out, i - previous - 1);
+                    writeSignedVarInt(out, difference);
+                    previous = i;
+                }
+            }
+        }else{
+            for(int i = 0; i < size; i ++)
+                writeSignedVarInt(out, entries[i] - (baseEntries == null ? 0 : baseEntries[i]));
+        }
+    }
+
+    /**
+     * Read a clock written by writeClock.
+     * @param base the base the clock was written with
+     * @return the clock, null if a null clock was written
+     */
+    public static VectorClock readClock(DataInput in, VectorClock base) throws IOException{
+        int header = readVarInt(in);
+        if(header == 0)
+            return null;
+
+        int size = (header >>> 1) - 1;
+        VectorClock clock = base != null && base.size() == size ? new VectorClock(base) : new VectorClock(size);
+        int[] entries = clock.entries();
+
+        if((header & 1) != 0){
+            int differences = readVarInt(in);
+            int i = -1;
+            for(int k = 0; k < differences; k ++){
+                i += readVarInt(in) + 1;
+                if(i >= size)
+                    throw new IOException("Malformed clock of size " + size);
+                entries[i] += readSignedVarInt(in);
+            }
+        }else{
+            for(int i = 0; i < size; i ++)
+                entries[i] += readSignedVarInt(in);
+        }
+        return clock;
+    }
+}
@@ -0,0 +1,393 @@
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the events changing the state of a process, with periodic snapshots.
+ *
+ * Records are appended to a memory buffer by the event loop and written by a background thread,
+ * which forces the file once for all records appended since its last round (group commit).
+ * Work depending on a record, like handing out a message stamped by it, is deferred with
+ * whenDurable until the record reached the disk.
+ *
+ * A snapshot holds the whole state of the process and replaces all records before it. Every
+ * snapshot starts a new generation of the log, so records already covered by a snapshot are
+ * never replayed even if the process stopped before the log was truncated.
+ *
+ * Log file: generation (long), then records of length (int), crc32 (int), type (byte) and the
+ * serialized payload. A record torn by a crash fails its checksum and ends the log.
+ */
+public class WriteAheadLog {
+
+    final static Logger logger = Logger.getLogger(WriteAheadLog.class);
+
+    public final static byte SEND = 1;
+
+    public final static byte BROADCAST = 2;
+
+    public final static byte RECEIVE = 3;
+
+    /**
+     * A record read back from the log
+     */
+    public static class Record {
+        private byte type;
+        private Object payload;
+
+        private Record(byte type, Object payload){
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType(){
+            return type;
+        }
+
+        public Object getPayload(){
+            return payload;
+        }
+    }
+
+    private static class Callback {
+        private long position;
+        private Runnable action;
+
+        private Callback(long position, Runnable action){
+            this.position = position;
+            this.action = action;
+        }
+    }
+
+    private final static int HEADER = 8;
+
+    private Path logPath;
+
+    private Path snapshotPath;
+
+    private FileChannel channel;
+
+    /**
+     * Generation of the current log, equal to the generation of the latest snapshot
+     */
+    private long generation;
+
+    /**
+     * Records appended but not yet written
+     */
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    /**
+     * Number of bytes appended and number of bytes forced to disk since the log was opened
+     */
+    private long appended;
+
+    private long durable;
+
+    private LinkedList<Callback> callbacks = new LinkedList<Callback>();
+
+    private int recordsSinceSnapshot;
+
+    private volatile boolean closed;
+
+    private Thread syncThread;
+
+    /**
+     * Constructor
+     * @param directory directory of the log and snapshot files
+     * @param index index of the process
+     * @param syncInterval time in milliseconds between two rounds of the group commit
+     * @throws IOException
+     */
+    public WriteAheadLog(String directory, int index, final int syncInterval) throws IOException{
+        Files.createDirectories(Paths.get(directory));
+        logPath = Paths.get(directory, "ses-" + index + ".wal");
+        snapshotPath = Paths.get(directory, "ses-" + index + ".snapshot");
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        syncDirectory();
+
+        syncThread = new Thread(new Runnable() {
+            public void run() {
+                while(!closed){
+                    try{
+                        Thread.sleep(syncInterval);
+                        sync();
+                    }catch (InterruptedException e){
+                        return;
+                    }catch (IOException e){
+                        logger.error("Failed to sync write-ahead log " + logPath);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "wal-sync-" + index);
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Read the latest snapshot, should be invoked once before readLog.
+     * @return the state saved by the snapshot, null if no snapshot was taken
+     * @throws IOException
+     */
+    public Serializable[] readSnapshot() throws IOException{
+        generation = 0;
+        if(!Files.exists(snapshotPath))
+            return null;
+
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)));
+        try{
+            generation = in.readLong();
+            return (Serializable[]) in.readObject();
+        }catch (ClassNotFoundException e){
+            throw new IOException("Invalid snapshot " + snapshotPath, e);
+        }finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read all records appended after the latest snapshot. The log is cut after the last intact
+     * record, and new records are appended from there.
+     * @return the records in the order they were appended
+     * @throws IOException
+     */
+    public List<Record> readLog() throws IOException{
+        List<Record> records = new ArrayList<Record>();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        channel.position(0);
+        if(channel.read(header) != HEADER || header.getLong(0) != generation){
+            // empty log, or a log already covered by the snapshot
+            reset();
+            return records;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(logPath)));
+        long end = HEADER;
+        try{
+            in.skipBytes(HEADER);
+            CRC32 crc = new CRC32();
+            while(true){
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if(length <= 0 || length > channel.size() - end)
+                    break;
+                byte[] data = new byte[length];
+                in.readFully(data);
+
+                crc.reset();
+                crc.update(data);
+                if((int) crc.getValue() != checksum)
+                    break;
+
+                records.add(new Record(data[0], deserialize(data)));
+                end += 8 + length;
+            }
+        }catch (EOFException e){
+            // torn or complete tail
+        }finally {
+            in.close();
+        }
+
+        channel.truncate(end);
+        channel.position(end);
+        recordsSinceSnapshot = records.size();
+        logger.info("Read " + records.size() + " records of generation " + generation + " from " + logPath);
+        return records;
+    }
+
+    /**
+     * Append a record, it is written by the next round of the group commit.
+     * @param type type of the event
+     * @param payload data needed to replay the event, serialized right away
+     * @return position to pass to whenDurable
+     */
+    public long append(byte type, Serializable payload){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(type);
+        try{
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(payload);
+            out.close();
+        }catch (IOException e){
+            throw new IllegalStateException("Failed to serialize " + payload, e);
+        }
+        byte[] data = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        synchronized (this){
+            DataOutputStream out = new DataOutputStream(buffer);
+            try{
+                out.writeInt(data.length);
+                out.writeInt((int) crc.getValue());
+                out.write(data);
+            }catch (IOException e){
+                throw new IllegalStateException(e);
+            }
+            appended += 8 + data.length;
+            recordsSinceSnapshot ++;
+            return appended;
+        }
+    }
+
+    /**
+     * Run an action once all records up to a position reached the disk.
+     * The action runs on the thread of the group commit, or right away if the records are already durable.
+     * @param position position returned by append
+     * @param action action to run
+     */
+    public void whenDurable(long position, Runnable action){
+        synchronized (this){
+            if(position > durable){
+                callbacks.add(new Callback(position, action));
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Write and force all appended records, then run the actions waiting for them.
+     * @throws IOException
+     */
+    public void sync() throws IOException{
+        List<Runnable> ready = new ArrayList<Runnable>();
+
+        synchronized (this){
+            if(buffer.size() > 0){
+                channel.write(ByteBuffer.wrap(buffer.toByteArray()));
+                buffer.reset();
+                channel.force(false);
+            }
+            durable = appended;
+
+            Iterator<Callback> iter = callbacks.iterator();
+            while(iter.hasNext()){
+                Callback callback = iter.next();
+                if(callback.position > durable)
+                    break;
+                ready.add(callback.action);
+                iter.remove();
+            }
+        }
+
+        for(Runnable action: ready)
+            action.run();
+    }
+
+    /**
+     * Save the whole state of the process and drop all records before it. The state must not change
+     * while the snapshot is taken, so this should be invoked on the event loop.
+     * @param state state of the process
+     * @throws IOException
+     */
+    public void snapshot(Serializable[] state) throws IOException{
+        sync();
+
+        synchronized (this){
+            Path temp = Paths.get(snapshotPath + ".tmp");
+            FileOutputStream file = new FileOutputStream(temp.toFile());
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(file));
+            try{
+                out.writeLong(generation + 1);
+                out.writeObject(state);
+                out.flush();
+                file.getFD().sync();
+            }finally {
+                out.close();
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // the rename is only durable once the directory is, the log must not be cut before
+            syncDirectory();
+
+            generation ++;
+            reset();
+        }
+    }
+
+    public int getRecordsSinceSnapshot(){
+        return recordsSinceSnapshot;
+    }
+
+    /**
+     * Write all appended records and stop the group commit.
+     */
+    public void close(){
+        closed = true;
+        syncThread.interrupt();
+        try{
+            sync();
+            channel.close();
+        }catch (IOException e){
+            logger.error("Failed to close write-ahead log " + logPath);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Force the directory of the log, so the entries of renamed or created files survive a crash.
+     * @throws IOException
+     */
+    private void syncDirectory() throws IOException{
+        FileChannel directory;
+        try{
+            directory = FileChannel.open(snapshotPath.toAbsolutePath().getParent(), StandardOpenOption.READ);
+        }catch (IOException e){
+            // some platforms, e.g. Windows, do not open directories
+            logger.warn("Failed to open the directory of " + snapshotPath + " to sync it: " + e);
+            return;
+        }
+
+        try{
+            directory.force(true);
+        }finally {
+            directory.close();
+        }
+    }
+
+    /**
+     * Start an empty log of the current generation.
+     */
+    private synchronized void reset() throws IOException{
+        channel.truncate(0);
+        channel.position(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(0, generation);
+        channel.write(header);
+        channel.force(true);
+        recordsSinceSnapshot = 0;
+    }
+
+    private static Object deserialize(byte[] data) throws IOException{
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+        try{
+            return in.readObject();
+        }catch (ClassNotFoundException e){
+            throw new IOException("Invalid record", e);
+        }finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "generation " + generation + " records " + recordsSinceSnapshot + " durable " + durable;
+    }
+}
@@ -0,0 +1,444 @@
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the Schiper-Eggli-Sandoz processes in virtual time: random point-to-point messages and multicasts,
+ * or broadcasts of the Birman-Schiper-Stephenson engine, with random delays over 30 seconds, all processes
+ * in one JVM connected by a LocalTransport.
+ */
+public class CausalOrderSimulationTest {
+
+    private static final int PROCESS_NUM = 6;
+    private static final int MESSAGE_NUM = 300;
+    private static final int DURATION = 30000;
+    private static final int MAX_DELAY = 5000;
+    private static final int PENDING_LIMIT = 2;
+    private static final int BATCH_SIZE = 4;
+    private static final int BATCH_LINGER = 200;
+
+    @Before
+    public void initialize(){
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Test(timeout = 10000)
+    public void testFullBuffer() throws RemoteException{
+        List<List<String>> run = simulate(1, "full", null);
+        assertEquals(run, simulate(1, "full", null));
+    }
+
+    @Test(timeout = 10000)
+    public void testDeltaBuffer() throws RemoteException{
+        List<List<String>> run = simulate(2, "delta", null);
+        assertEquals(run, simulate(2, "delta", null));
+    }
+
+    @Test(timeout = 10000)
+    public void testBroadcastEngine() throws RemoteException{
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("broadcast_engine", "bss");
+
+        List<List<String>> run = simulate(6, settings);
+        assertEquals(run, simulate(6, settings));
+    }
+
+    /**
+     * P0 multicasts m1 to P1 and P2, P1 delivers it and sends m2 to P2, which arrives before m1.
+     * The copy of m1 to P1 carries the timestamp of m1 as the entry of P2, so P2 postpones m2.
+     */
+    @Test(timeout = 10000)
+    public void testMulticastKeepsCausalOrder(){
+        CausalState p0 = new CausalState(3, 0);
+        CausalState p1 = new CausalState(3, 1);
+        CausalState p2 = new CausalState(3, 2);
+
+        Message m1 = new Message(0, 1, 0);
+        m1.setContent("m1");
+        List<Message> copies = p0.send(new int[]{1, 2}, m1);
+        Message toP1 = copies.get(0).getDestId() == 1 ? copies.get(0) : copies.get(1);
+        Message toP2 = copies.get(0).getDestId() == 2 ? copies.get(0) : copies.get(1);
+
+        assertTrue(p1.isDeliveryReady(toP1));
+        p1.deliver(toP1);
+
+        Message m2 = new Message(1, 2, 0);
+        m2.setContent("m2");
+        Message sent = p1.send(new int[]{2}, m2).get(0);
+
+        assertFalse("m2 overtook m1", p2.isDeliveryReady(sent));
+        p2.postpone(sent);
+
+        assertTrue(p2.isDeliveryReady(toP2));
+        p2.deliver(toP2);
+        Message next = p2.pollPending();
+        assertEquals("m2", next == null ? null : next.getContent());
+    }
+
+    /**
+     * P1 delivers broadcast b1 of P0, then broadcasts b2; P2 receives b2 first and delivers it after b1.
+     */
+    @Test(timeout = 10000)
+    public void testBroadcastEngineOrder(){
+        BirmanSchiperStephenson p0 = new BirmanSchiperStephenson(3, 0);
+        BirmanSchiperStephenson p1 = new BirmanSchiperStephenson(3, 1);
+        BirmanSchiperStephenson p2 = new BirmanSchiperStephenson(3, 2);
+
+        Message b1 = new Message(0, 1, 0);
+        b1.setContent("b1");
+        p0.stamp(b1);
+        assertEquals(1, p1.receive(b1.copyFor(1)).size());
+
+        Message b2 = new Message(1, 2, 0);
+        b2.setContent("b2");
+        p1.stamp(b2);
+
+        assertTrue(p2.receive(b2.copyFor(2)).isEmpty());
+        assertEquals(1, p2.getPendingSize());
+
+        List<Message> delivered = p2.receive(b1.copyFor(2));
+        assertEquals(2, delivered.size());
+        assertEquals("b1", delivered.get(0).getContent());
+        assertEquals("b2", delivered.get(1).getContent());
+        assertEquals(0, p2.getPendingSize());
+    }
+
+    @Test(timeout = 10000)
+    public void testTrace() throws IOException{
+        File traceDir = new File("target/simulation-trace");
+        List<List<String>> run = simulate(3, "full", traceDir.getPath());
+
+        List<String> paths = new ArrayList<String>();
+        int total = 0;
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            total += run.get(i).size();
+            TraceDecoder trace = new TraceDecoder(new File(traceDir, "trace-" + i + ".bin").getPath());
+            int delivered = 0;
+            while(trace.next()){
+                assertEquals(i, trace.getProcess());
+                if(trace.getTypeName().equals("DELIVER")){
+                    assertEquals(PROCESS_NUM, trace.getValues().length);
+                    delivered ++;
+                }
+            }
+            trace.close();
+            assertEquals(run.get(i).size(), delivered);
+            paths.add(new File(traceDir, "trace-" + i + ".bin").getPath());
+        }
+
+        CausalOrderVerifier verifier = new CausalOrderVerifier(new File("target/simulation-verifier"), 2);
+        assertTrue(verifier.getReported().toString(), verifier.verify(paths));
+        assertEquals(total, verifier.getDeliveries());
+    }
+
+    @Test(timeout = 10000)
+    public void testVerifierFindsViolation() throws IOException{
+        File traceDir = new File("target/violation-trace");
+        TraceRecorder sender = new TraceRecorder(new File(traceDir, "trace-0.bin").getPath(), 0,
+                DA_Schiper_Eggli_Sandoz.TRACE_TYPES, 1024);
+        sender.record(0, 1, 1, 0, 0, new int[]{1, 0}, 2);
+        sender.record(0, 1, 2, 0, 0, new int[]{2, 0}, 2);
+        sender.close();
+
+        // the receiver delivers the second message first
+        TraceRecorder receiver = new TraceRecorder(new File(traceDir, "trace-1.bin").getPath(), 1,
+                DA_Schiper_Eggli_Sandoz.TRACE_TYPES, 1024);
+        receiver.record(3, 0, 2, 0, 0, new int[]{2, 1}, 2);
+        receiver.record(3, 0, 1, 0, 0, new int[]{2, 2}, 2);
+        receiver.close();
+
+        List<String> paths = new ArrayList<String>();
+        paths.add(new File(traceDir, "trace-0.bin").getPath());
+        paths.add(new File(traceDir, "trace-1.bin").getPath());
+        CausalOrderVerifier verifier = new CausalOrderVerifier(new File("target/violation-verifier"), 2);
+        assertFalse(verifier.verify(paths));
+        assertEquals(1, verifier.getViolations());
+    }
+
+    @Test(timeout = 10000)
+    public void testFlowControl() throws RemoteException{
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("pending_limit", PENDING_LIMIT);
+        settings.setProperty("flow_control", "reject");
+
+        List<List<String>> run = simulate(4, settings);
+        assertEquals(run, simulate(4, settings));
+    }
+
+    @Test(timeout = 10000)
+    public void testBatching() throws RemoteException{
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("batch_size", BATCH_SIZE);
+        settings.setProperty("batch_linger", BATCH_LINGER);
+
+        CountingTransport transport = new CountingTransport(PROCESS_NUM);
+        List<List<String>> run = simulate(5, settings, transport);
+        assertEquals(run, simulate(5, settings));
+        assertTrue(transport.messages + " messages in " + transport.calls + " calls", transport.messages > transport.calls);
+    }
+
+    /**
+     * Every other call to P1 fails as if P1 was unreachable: the batches are retried after a backoff,
+     * and the later batches to P1 wait for them.
+     */
+    @Test(timeout = 10000)
+    public void testRetry() throws RemoteException{
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("batch_size", BATCH_SIZE);
+        settings.setProperty("batch_linger", BATCH_LINGER);
+
+        FlakyTransport transport = new FlakyTransport(PROCESS_NUM);
+        List<List<String>> run = simulate(7, settings, transport);
+        assertEquals(run, simulate(7, settings, new FlakyTransport(PROCESS_NUM)));
+        assertTrue(transport.failures > 0);
+    }
+
+    private List<List<String>> simulate(long seed, String bufferMode, String traceDir) throws RemoteException{
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("buffer_mode", bufferMode);
+        if(traceDir != null)
+            settings.setProperty("trace_dir", traceDir);
+        return simulate(seed, settings);
+    }
+
+    /**
+     * Run one scenario and check that every message is delivered in causal order. With flow control,
+     * also check that no process holds more undelivered messages of a sender than it allows.
+     * @param settings settings of the processes, as in url.properties
+     * @return the contents of the delivered messages, per process in delivery order
+     */
+    private List<List<String>> simulate(long seed, PropertiesConfiguration settings) throws RemoteException{
+        return simulate(seed, settings, new LocalTransport(PROCESS_NUM));
+    }
+
+    /**
+     * @param transport empty transport connecting the processes
+     */
+    private List<List<String>> simulate(long seed, PropertiesConfiguration settings, LocalTransport transport)
+            throws RemoteException{
+        VirtualScheduler simulator = new VirtualScheduler(seed);
+
+        DelayScheduler scheduler = new DelayScheduler(simulator);
+        final DA_Schiper_Eggli_Sandoz[] processes = new DA_Schiper_Eggli_Sandoz[PROCESS_NUM];
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            processes[i] = new DA_Schiper_Eggli_Sandoz(PROCESS_NUM, i, settings, transport, scheduler, simulator);
+            transport.register(i, processes[i]);
+        }
+
+        // with the Birman-Schiper-Stephenson engine all messages are broadcasts, their clocks count broadcasts only
+        final boolean broadcasts = "bss".equals(settings.getString("broadcast_engine", "ses"));
+        Random random = simulator.getRandom();
+        final int[] expected = new int[1];
+        final int[] rejected = new int[1];
+        for(int k = 0; k < MESSAGE_NUM; k ++){
+            final int src = random.nextInt(PROCESS_NUM);
+            final int[] destIds = destinations(random, src);
+            final Message message = new Message(src, destIds[0], random.nextInt(MAX_DELAY));
+            message.setContent("m" + k);
+
+            simulator.schedule(new Runnable() {
+                public void run() {
+                    try{
+                        if(broadcasts){
+                            // delivered by the sender too, right away
+                            processes[src].broadcast(message);
+                            expected[0] += PROCESS_NUM;
+                        }else{
+                            processes[src].multicast(destIds, message);
+                            expected[0] += destIds.length;
+                        }
+                    }catch (BacklogExceededException e){
+                        rejected[0] ++;
+                    }catch (RemoteException e){
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }, random.nextInt(DURATION));
+        }
+
+        final int limit = settings.getInt("pending_limit", 0);
+        if(limit > 0){
+            for(int time = 0; time < DURATION + MAX_DELAY; time += 100){
+                simulator.schedule(new Runnable() {
+                    public void run() {
+                        for(DA_Schiper_Eggli_Sandoz process: processes){
+                            for(int src = 0; src < PROCESS_NUM; src ++)
+                                assertTrue(process.getBacklog(src) <= limit);
+                        }
+                    }
+                }, time);
+            }
+        }
+
+        // half way, delayed receives are still waiting for the simulator to fire them
+        final DelayScheduler delays = scheduler;
+        simulator.schedule(new Runnable() {
+            public void run() {
+                assertTrue(delays.toString(), delays.getFiredCount() < delays.getScheduledCount());
+                assertEquals(delays.getScheduledCount() - delays.getFiredCount(), delays.getQueueDepth());
+            }
+        }, DURATION / 2);
+
+        simulator.run();
+        assertTrue(simulator.now() >= DURATION / 2);
+        assertEquals(scheduler.getScheduledCount(), scheduler.getFiredCount());
+        assertEquals(0, scheduler.getQueueDepth());
+
+        List<List<String>> contents = new ArrayList<List<String>>();
+        int delivered = 0;
+        for(DA_Schiper_Eggli_Sandoz process: processes){
+            List<Message> messages = process.getDeliveredMessages();
+            assertCausalOrder(messages);
+            assertEquals(0, process.getPendingSize());
+            delivered += messages.size();
+
+            List<String> list = new ArrayList<String>();
+            for(Message message: messages)
+                list.add(message.getContent());
+            contents.add(list);
+        }
+        assertEquals(expected[0], delivered);
+        if(limit > 0){
+            assertTrue("no send was rejected", rejected[0] > 0);
+            for(int i = 0; i < PROCESS_NUM; i ++){
+                for(int j = 0; j < PROCESS_NUM; j ++)
+                    assertEquals(limit, processes[i].getCredits(j));
+            }
+        }
+
+        for(DA_Schiper_Eggli_Sandoz process: processes){
+            if(process.getTrace() != null)
+                process.getTrace().close();
+        }
+
+        return contents;
+    }
+
+    /**
+     * One destination in most cases, sometimes a group of up to three.
+     */
+    private int[] destinations(Random random, int src){
+        int count = random.nextInt(4) == 0 ? 1 + random.nextInt(3) : 1;
+        List<Integer> candidates = new ArrayList<Integer>();
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            if(i != src)
+                candidates.add(i);
+        }
+
+        int[] destIds = new int[count];
+        for(int i = 0; i < count; i ++)
+            destIds[i] = candidates.remove(random.nextInt(candidates.size()));
+        return destIds;
+    }
+
+    /**
+     * LocalTransport counting the calls handing messages to a process and the messages handed over.
+     */
+    private static class CountingTransport extends LocalTransport {
+
+        private int calls;
+        private int messages;
+
+        private CountingTransport(int processNum){
+            super(processNum);
+        }
+
+        @Override
+        public DA_Schiper_Eggli_Sandoz_RMI get(int index){
+            final DA_Schiper_Eggli_Sandoz_RMI process = super.get(index);
+            if(process == null)
+                return null;
+
+            return (DA_Schiper_Eggli_Sandoz_RMI) Proxy.newProxyInstance(DA_Schiper_Eggli_Sandoz_RMI.class.getClassLoader(),
+                    new Class<?>[]{DA_Schiper_Eggli_Sandoz_RMI.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if(method.getName().equals("receive")){
+                                calls ++;
+                                messages ++;
+                            }else if(method.getName().equals("receiveBatch")){
+                                calls ++;
+                                messages += ((List<?>) args[0]).size();
+                            }
+
+                            try{
+                                return method.invoke(process, args);
+                            }catch (InvocationTargetException e){
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * LocalTransport failing every other call to P1 before it reaches P1.
+     */
+    private static class FlakyTransport extends LocalTransport {
+
+        private int attempts;
+        private int failures;
+
+        private FlakyTransport(int processNum){
+            super(processNum);
+        }
+
+        @Override
+        public DA_Schiper_Eggli_Sandoz_RMI get(int index){
+            final DA_Schiper_Eggli_Sandoz_RMI process = super.get(index);
+            if(process == null || index != 1)
+                return process;
+
+            return (DA_Schiper_Eggli_Sandoz_RMI) Proxy.newProxyInstance(DA_Schiper_Eggli_Sandoz_RMI.class.getClassLoader(),
+                    new Class<?>[]{DA_Schiper_Eggli_Sandoz_RMI.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if(method.getName().startsWith("receive") && attempts ++ % 2 == 0){
+                                failures ++;
+                                throw new ConnectException("P1 is unreachable");
+                            }
+
+                            try{
+                                return method.invoke(process, args);
+                            }catch (InvocationTargetException e){
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        public void invalidate(int index, DA_Schiper_Eggli_Sandoz_RMI process){
+        }
+    }
+
+    /**
+     * No message is delivered after a message sent causally after it.
+     */
+    private void assertCausalOrder(List<Message> messages){
+        for(int i = 0; i < messages.size(); i ++){
+            for(int j = i + 1; j < messages.size(); j ++){
+                VectorClock earlier = messages.get(i).getTs();
+                VectorClock later = messages.get(j).getTs();
+                assertFalse(messages.get(j).getContent() + " delivered after " + messages.get(i).getContent(),
+                        later.isLessOrEqual(earlier) && !later.equals(earlier));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Looks up a process bound in a registry in this JVM: the stub is cached, dropped after a failed call
+ * and looked up again once the process is bound anew.
+ */
+public class StubCacheTest {
+
+    private Registry registry;
+
+    private String[] urls;
+
+    private StubCache cache;
+
+    /**
+     * Number of calls to test() of all exported processes
+     */
+    private AtomicInteger calls = new AtomicInteger();
+
+    @Before
+    public void initialize() throws IOException{
+        Logger.getRootLogger().setLevel(Level.WARN);
+        System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        registry = LocateRegistry.createRegistry(port);
+        urls = new String[]{"rmi://127.0.0.1:" + port + "/P0"};
+        cache = new StubCache(urls, 1);
+    }
+
+    @After
+    public void shutdown() throws NoSuchObjectException{
+        cache.shutdown();
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+
+    @Test(timeout = 20000)
+    public void testLookupAndInvalidate() throws Exception{
+        DA_Schiper_Eggli_Sandoz_RMI process = export();
+        registry.rebind("P0", process);
+
+        // the first get starts the lookup, the later ones hit the cache
+        cache.get(0);
+        assertTrue(cache.awaitAll(5000));
+        DA_Schiper_Eggli_Sandoz_RMI stub = cache.get(0);
+        assertNotNull(stub);
+        assertSame(stub, cache.get(0));
+        stub.test();
+        assertEquals(1, calls.get());
+
+        // the process goes away: the call surely did not reach it, so the stub is dropped
+        UnicastRemoteObject.unexportObject(process, true);
+        try{
+            stub.test();
+            throw new AssertionError("call to an unexported process succeeded");
+        }catch (RemoteException e){
+            assertTrue(StubCache.isNotExecuted(e));
+            cache.invalidate(0, stub);
+        }
+        assertNull(cache.get(0));
+        assertEquals(0, cache.getResolvedCount());
+
+        // the process is bound again and found by the lookup retried in the background
+        registry.rebind("P0", export());
+        assertTrue(cache.awaitAll(15000));
+        DA_Schiper_Eggli_Sandoz_RMI fresh = cache.get(0);
+        assertNotSame(stub, fresh);
+        fresh.test();
+        assertEquals(2, calls.get());
+
+        // a late failure of the old stub does not drop the new one
+        cache.invalidate(0, stub);
+        assertSame(fresh, cache.get(0));
+    }
+
+    /**
+     * Export a process which counts the calls to test() and ignores the other calls
+     * @return the exported process, binding it binds its stub
+     */
+    private DA_Schiper_Eggli_Sandoz_RMI export() throws RemoteException{
+        DA_Schiper_Eggli_Sandoz_RMI process = (DA_Schiper_Eggli_Sandoz_RMI) Proxy.newProxyInstance(
+                StubCacheTest.class.getClassLoader(), new Class<?>[]{DA_Schiper_Eggli_Sandoz_RMI.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("equals"))
+                            return proxy == args[0];
+                        if(method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        if(method.getName().equals("toString"))
+                            return "P0";
+                        if(method.getName().equals("test"))
+                            calls.incrementAndGet();
+                        if(method.getReturnType() == int.class)
+                            return 0;
+                        return null;
+                    }
+                });
+        UnicastRemoteObject.exportObject(process, 0);
+        return process;
+    }
+}
@@ -0,0 +1,211 @@
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Crashes processes with a write-ahead log and restarts them from their log directory: the recovered
+ * timestamps and local buffers must equal those before the crash, and the recovered processes go on
+ * delivering messages. The processes run in real time in one JVM, connected by a LocalTransport.
+ */
+public class WriteAheadLogTest {
+
+    private static final int PROCESS_NUM = 3;
+    private static final int MESSAGE_NUM = 40;
+    private static final int SNAPSHOT_INTERVAL = 7;
+    private static final long TIMEOUT = 10000;
+
+    private DelayScheduler scheduler;
+
+    private List<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+    @Before
+    public void initialize(){
+        Logger.getRootLogger().setLevel(Level.WARN);
+        scheduler = new DelayScheduler(PROCESS_NUM);
+    }
+
+    @After
+    public void shutdown(){
+        scheduler.shutdown();
+        for(ExecutorService executor: executors)
+            executor.shutdownNow();
+    }
+
+    @Test(timeout = 30000)
+    public void testRestartFull() throws Exception{
+        crashAndRecover("full", 10000, false);
+    }
+
+    @Test(timeout = 30000)
+    public void testRestartDelta() throws Exception{
+        crashAndRecover("delta", 10000, false);
+    }
+
+    @Test(timeout = 30000)
+    public void testSnapshotFull() throws Exception{
+        crashAndRecover("full", SNAPSHOT_INTERVAL, false);
+    }
+
+    @Test(timeout = 30000)
+    public void testSnapshotDelta() throws Exception{
+        crashAndRecover("delta", SNAPSHOT_INTERVAL, false);
+    }
+
+    @Test(timeout = 30000)
+    public void testTornTailFull() throws Exception{
+        crashAndRecover("full", 10000, true);
+    }
+
+    @Test(timeout = 30000)
+    public void testTornTailDelta() throws Exception{
+        crashAndRecover("delta", 10000, true);
+    }
+
+    /**
+     * Run two rounds of messages, each followed by a crash of all processes and a restart from the log.
+     * @param tornTail whether the first crash leaves a partly written record at the end of a log
+     */
+    private void crashAndRecover(String bufferMode, int snapshotInterval, boolean tornTail) throws Exception{
+        File walDir = new File("target/wal-test/" + bufferMode + "-" + snapshotInterval + "-" + tornTail);
+        delete(walDir);
+
+        PropertiesConfiguration settings = new PropertiesConfiguration();
+        settings.setProperty("buffer_mode", bufferMode);
+        settings.setProperty("wal_dir", walDir.getPath());
+        settings.setProperty("wal_snapshot_interval", snapshotInterval);
+
+        Random random = new Random(snapshotInterval);
+        DA_Schiper_Eggli_Sandoz[] processes = start(settings);
+        for(int round = 0; round < 2; round ++){
+            sendAll(processes, random, "round " + round);
+            List<VectorClock> ts = new ArrayList<VectorClock>();
+            List<Map<Integer, VectorClock>> buffers = new ArrayList<Map<Integer, VectorClock>>();
+            for(DA_Schiper_Eggli_Sandoz process: processes){
+                ts.add(new VectorClock(process.getTimestamp()));
+                buffers.add(copy(process.getLocalBuffer()));
+            }
+
+            // the crash: the processes stop without closing their logs
+            for(ExecutorService executor: executors)
+                executor.shutdownNow();
+            executors.clear();
+
+            File log = new File(walDir, "ses-0.wal");
+            long intact = log.length();
+            if(tornTail && round == 0)
+                tear(log);
+
+            processes = start(settings);
+            assertEquals(intact, log.length());
+            for(int i = 0; i < PROCESS_NUM; i ++){
+                assertEquals("timestamp of P" + i, ts.get(i), processes[i].getTimestamp());
+                assertEquals("buffer of P" + i, buffers.get(i), processes[i].getLocalBuffer());
+                assertEquals(0, processes[i].getPendingSize());
+            }
+        }
+
+        assertEquals(snapshotInterval == SNAPSHOT_INTERVAL, new File(walDir, "ses-0.snapshot").exists());
+
+        // a clean stop leaves the log as it is
+        long length = new File(walDir, "ses-0.wal").length();
+        for(DA_Schiper_Eggli_Sandoz process: processes)
+            process.close();
+        assertEquals(length, new File(walDir, "ses-0.wal").length());
+    }
+
+    /**
+     * Create and connect the processes, each recovers from its log before the constructor returns.
+     */
+    private DA_Schiper_Eggli_Sandoz[] start(PropertiesConfiguration settings) throws RemoteException{
+        LocalTransport transport = new LocalTransport(PROCESS_NUM);
+        DA_Schiper_Eggli_Sandoz[] processes = new DA_Schiper_Eggli_Sandoz[PROCESS_NUM];
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executors.add(executor);
+            processes[i] = new DA_Schiper_Eggli_Sandoz(PROCESS_NUM, i, settings, transport, scheduler, executor);
+            transport.register(i, processes[i]);
+        }
+        return processes;
+    }
+
+    /**
+     * Send random messages without delay and wait until all of them are delivered.
+     */
+    private void sendAll(DA_Schiper_Eggli_Sandoz[] processes, Random random, String prefix)
+            throws RemoteException, InterruptedException{
+        long expected = 0;
+        for(DA_Schiper_Eggli_Sandoz process: processes)
+            expected += process.getMetrics().getDeliveredCount();
+        expected += MESSAGE_NUM;
+
+        for(int k = 0; k < MESSAGE_NUM; k ++){
+            int src = random.nextInt(PROCESS_NUM);
+            int dest = (src + 1 + random.nextInt(PROCESS_NUM - 1)) % PROCESS_NUM;
+            Message message = new Message(src, dest, 0);
+            message.setContent(prefix + " m" + k);
+            processes[src].send(dest, message);
+        }
+
+        long delivered = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(delivered < expected && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+            delivered = 0;
+            for(DA_Schiper_Eggli_Sandoz process: processes)
+                delivered += process.getMetrics().getDeliveredCount();
+        }
+        assertEquals(expected, delivered);
+
+        // the last deliveries might still be running, and checkpoints after them
+        for(DA_Schiper_Eggli_Sandoz process: processes)
+            process.awaitIdle();
+    }
+
+    /**
+     * Append the beginning of a record, as a crash in the middle of a write leaves it.
+     */
+    private void tear(File log) throws IOException{
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(log, true));
+        try{
+            out.writeInt(64);
+            out.writeInt(0x12345678);
+            out.write(new byte[20]);
+        }finally {
+            out.close();
+        }
+    }
+
+    private static Map<Integer, VectorClock> copy(Map<Integer, VectorClock> buffer){
+        Map<Integer, VectorClock> copy = new HashMap<Integer, VectorClock>();
+        for(Map.Entry<Integer, VectorClock> entry: buffer.entrySet())
+            copy.put(entry.getKey(), new VectorClock(entry.getValue()));
+        return copy;
+    }
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child: children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
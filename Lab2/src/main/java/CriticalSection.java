@@ -0,0 +1,39 @@
+/**
+ * A critical section of Singhal's algorithm a DistributedLock hands to application threads:
+ * the one of a DA_Singhal process, or the one of a resource of a LockTable.
+ */
+public interface CriticalSection {
+
+    /**
+     * Hand the critical sections to a lock, which is granted each time the process enters one.
+     * @param lock lock of application threads
+     */
+    void attach(DistributedLock lock);
+
+    /**
+     * Request the critical section for the lock, without waiting for it.
+     */
+    void requestToken();
+
+    /**
+     * Enter the critical section for the lock only if the token is idle at this process. Checks and enters
+     * on the thread owning the process, and only waits for that thread, never for the token.
+     * @return true if the process entered the critical section
+     */
+    boolean tryRequestToken();
+
+    /**
+     * Leave the critical section of the lock, without waiting for the token to be passed on.
+     */
+    void releaseToken();
+
+    /**
+     * @return state of this process for the critical section
+     */
+    State getState();
+
+    /**
+     * @param latency nanoseconds a thread waited for the lock
+     */
+    void recordLockWait(long latency);
+}
@@ -1,16 +1,27 @@
 import org.apache.log4j.Logger;
 
-import java.net.MalformedURLException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-
-public class DA_Singhal extends UnicastRemoteObject implements DA_Singhal_RMI, Runnable{
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process of Singhal's algorithm, as an event loop: requestCS, the arriving requests and tokens and the
+ * end of a critical section are queued as events and run one at a time by the thread owning the process,
+ * which alone reads and updates the state of the algorithm in a SinghalCore. RMI calls only queue an event.
+ *
+ * Requests and tokens to another process are queued on a PeerChannel and sent by its thread, so the
+ * owner never waits for another process. A channel makes one call at a time and the owner queues
+ * the events of a call in arrival order, so the messages from one process are processed in sending order.
+ */
+public class DA_Singhal extends UnicastRemoteObject implements DA_Singhal_RMI, CriticalSection, Runnable{
 
     /**
      * The total number of process in the system
@@ -23,147 +34,263 @@ public class DA_Singhal extends UnicastRemoteObject implements DA_Singhal_RMI, R
     private int index;
 
     /**
-     * the arrary to store the State of all processes
+     * State and request number of all processes, and the token while in the critical section
      */
-    private List<State> state_array =new LinkedList<State>();
-
-    private List<Integer> request_number =new LinkedList<Integer>();
+    private SinghalCore core;
 
     /**
-     * List of all servers in the system
+     * Outbound queues to the other processes, created on first use
      */
-    private Map<Integer, DA_Singhal_RMI> processList;
+    private ConcurrentHashMap<Integer, PeerChannel<DA_Singhal_RMI>> channels;
 
-
-    private List<DA_Singhal_RMI> queue;
     /**
      * Map of url of remote process and its process index.
      */
     private Map<Integer, String> port;
 
+    /**
+     * Scheduler running the critical sections in virtual time, null if the process runs in real time
+     */
+    private VirtualScheduler simulator;
+
+    /**
+     * The thread owning the process, running its events in arrival order. Null in a simulation,
+     * which runs the events in the call, its calls are sequential anyway.
+     */
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Token statistics, exposed through JMX.
+     */
+    private SinghalMetrics metrics;
+
+    /**
+     * Lock handing the critical section to application threads, null if the process runs CS() instead
+     */
+    private DistributedLock lock;
+
+    /**
+     * Time spent in the critical section, in milliseconds
+     */
+    private static final int CS_TIME = 2000;
+
     final static Logger logger = Logger.getLogger(DA_Singhal.class);
 
     public DA_Singhal(int processNum, int index) throws RemoteException {
+        this(processNum, index, null);
+
+        String[] urls = ProcessManager.readConfiguration();
+        for(int i = 0; i < urls.length; i ++)
+            port.put(i, urls[i]);
+    }
+
+    /**
+     * Constructor of a process in a simulation. It does not read url.properties,
+     * the other processes are connected with connect.
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     * @param simulator scheduler running the critical sections in virtual time
+     */
+    public DA_Singhal(int processNum, int index, VirtualScheduler simulator) throws RemoteException {
         this.processNum = processNum;
         this.index = index;
- 
-        ///initialize the state array
-        if(index == 0){
-            state_array.add(State.H);
-            for(int i=1;i<processNum;i++){
-                state_array.add(State.O);
+        this.simulator = simulator;
+
+        core = new SinghalCore(processNum, index, new SinghalCore.Network() {
+            public void sendRequest(int destId, int reqNum) {
+                DA_Singhal.this.sendRequest(destId, reqNum);
             }
-        }else{
-            for(int i=0;i<processNum;i++){
-                if(i<index){
-                    state_array.add(State.R);
-                }else{
-                    state_array.add(State.O);
-                }
+
+            public void sendToken(int destId, Token token) {
+                DA_Singhal.this.sendToken(destId, token);
             }
+        });
+
+        channels = new ConcurrentHashMap<Integer, PeerChannel<DA_Singhal_RMI>>();
+        port = new HashMap<Integer, String>();
+
+        if(simulator == null){
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Singhal-" + DA_Singhal.this.index);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
         }
+        metrics = new SinghalMetrics(this, executor);
+        metrics.register(index);
+    }
+
+    /**
+     * Connect to another process without looking it up in the registry.
+     * @param index index of the process
+     * @param process the process or a stub of it
+     */
+    void connect(int index, DA_Singhal_RMI process){
+        channels.put(index, newChannel(index, process));
+    }
 
-        for(int i=0;i<processNum;i++){
-            request_number.add(0);
+    private PeerChannel<DA_Singhal_RMI> channel(int index){
+        PeerChannel<DA_Singhal_RMI> channel = channels.get(index);
+        if(channel == null){
+            channel = newChannel(index, null);
+            PeerChannel<DA_Singhal_RMI> existing = channels.putIfAbsent(index, channel);
+            if(existing != null)
+                channel = existing;
         }
+        return channel;
+    }
 
-        processList = new HashMap<Integer, DA_Singhal_RMI>();
-        port = new HashMap<Integer, String>();
-        String[] urls = ProcessManager.readConfiguration();
-        for(int i = 0; i < urls.length; i ++)
-            port.put(i, urls[i]);
+    /**
+     * A simulation makes the calls in virtual time, on the simulator
+     */
+    private PeerChannel<DA_Singhal_RMI> newChannel(int index, DA_Singhal_RMI process){
+        String name = "Singhal-" + this.index + "-to-" + index;
+        if(simulator != null)
+            return new PeerChannel<DA_Singhal_RMI>(name, port.get(index), process, simulator);
+        return new PeerChannel<DA_Singhal_RMI>(name, port.get(index), process);
     }
 
 
     /**
-     * Grant permission to a targeted process by sending a token
+     * Grant permission to a targeted process by sending a token, without waiting for it
      * @param desId
      * @param token
-     * @throws RemoteException
      */
-    public void sendToken (int desId, Token token) throws RemoteException {
-        checkProcess(desId);
-
-        processList.get(desId).receiveToken(token);
+    public void sendToken (int desId, final Token token) {
+        channel(desId).send(new PeerChannel.Call<DA_Singhal_RMI>() {
+            public void invoke(DA_Singhal_RMI peer) throws RemoteException {
+                long start = System.nanoTime();
+                peer.receiveToken(token);
+                metrics.recordSend(System.nanoTime() - start);
+            }
+        });
+    }
 
+    private void sendRequest(int desId, final int reqNum){
+        channel(desId).send(new PeerChannel.Call<DA_Singhal_RMI>() {
+            public void invoke(DA_Singhal_RMI peer) throws RemoteException {
+                peer.receiveRequest(index, reqNum);
+            }
+        });
     }
 
     /**
      * receive a token
      * @param token the token to be received
      */
-    public void receiveToken(Token token) throws RemoteException {
-        logger.info("into receiveToken" + "state array:" + this.state_array + "request numbers "+ this.request_number);
-
-        checkProcess(index);
+    public void receiveToken(final Token token) throws RemoteException {
+        final long arrival = System.nanoTime();
 
-        SleepCS delayedProcess = new SleepCS(processList.get(index),token);
-        new Thread(delayedProcess).start();
-
-        logger.info("exit receiveToken" + "state array:" + this.state_array + "request numbers "+ this.request_number);
+        dispatch(new Runnable() {
+            public void run() {
+                metrics.recordDispatch(System.nanoTime() - arrival);
+                processToken(token);
+            }
+        });
     }
 
     /**
-     * Process a token
-     * @param token
-     * @throws RemoteException
+     * Enter the critical section with a token. Only the event receiveToken queued calls it,
+     * on the thread owning the process.
+     * @param token the token received
      */
-    public void processToken(Token token) throws RemoteException{
-        logger.info("into processToken" + "state array:" + this.state_array + "request numbers "+ this.request_number);
-
-        state_array.set(index, State.E);
-
-        CS();
-
-        state_array.set(index, State.O);
-        token.setTS(index, State.O);
-
-        // update knowledge for both token and process
-        for(int i = 0; i < processNum; i ++){
-            if(this.request_number.get(i) > token.getTN().get(i)){
-                token.setTN(i, this.request_number.get(i));
-                token.setTS(i, this.state_array.get(i));
-
-                // update knowledge for waiting list of token
-                if(state_array.get(i) == State.R)
-                    token.addPossibleOwner(i);
-            }else{
-                this.request_number.set(i, token.getTN().get(i));
-                this.state_array.set(i, token.getTS().get(i));
-            }
-        }
+    private void processToken(Token token) {
+        logger.info("into processToken " + core);
+        core.receiveToken(token);
+        entered();
+    }
 
-        // update information for waiting list for token
-        int next = token.retrieveNextOwner();
-        if(next == -1){
-            this.state_array.set(index, State.H);
+    /**
+     * The process entered the critical section: schedule its end, grant the lock or run CS().
+     */
+    private void entered(){
+        if(simulator != null){
+            simulator.schedule(new Runnable() {
+                public void run() {
+                    exitCS();
+                }
+            }, CS_TIME);
+        }else if(lock != null){
+            // nobody waits for the critical section any more, e.g. after a timeout
+            if(!lock.grant())
+                exitCS();
         }else{
-            sendToken(next, token);
+            CS();
+            exitCS();
         }
-        logger.info("exit processToken" + "state array:" + this.state_array + "request numbers "+ this.request_number);
     }
 
     /**
-     * Send requests to processes that might hold the token
+     * Hand the critical sections of this process to a lock instead of running CS().
+     * @param lock lock of application threads
      */
-    public void sendRequest() throws RemoteException {
-        logger.info("into send request" + " state:" + this.state_array + " reqNum "+ this.request_number);
-
-        this.state_array.set(index, State.R);
-        this.request_number.set(index, request_number.get(index) + 1);
+    public void attach(DistributedLock lock){
+        if(simulator != null)
+            throw new IllegalStateException("A lock blocks threads, it could not be used in virtual time");
+        this.lock = lock;
+    }
 
+    /**
+     * Request the critical section for the lock, on the thread owning the process.
+     */
+    public void requestToken(){
+        try{
+            requestCS();
+        }catch (RemoteException e){
+            e.printStackTrace();
+        }
+    }
 
-        for(int i = 0; i < processNum; i ++){
-            if(i == index)
-                continue;
+    /**
+     * Enter the critical section for the lock if the token is idle here, on the thread owning the process.
+     */
+    public boolean tryRequestToken(){
+        FutureTask<Boolean> entered = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+                return core.tryEnter();
+            }
+        });
+        dispatch(entered);
+        return DistributedLock.await(entered);
+    }
 
-            if(state_array.get(i) == State.R){
-                checkProcess(i);
-                processList.get(i).receiveRequest(index, request_number.get(index));
+    /**
+     * Leave the critical section of the lock, on the thread owning the process.
+     */
+    public void releaseToken(){
+        dispatch(new Runnable() {
+            public void run() {
+                exitCS();
             }
-        }
+        });
+    }
+
+    /**
+     * Queue an event for the thread owning the process. A simulation runs the event right away.
+     */
+    private void dispatch(Runnable event){
+        if(executor == null)
+            event.run();
+        else
+            executor.execute(event);
+    }
+
+    /**
+     * Leave the critical section and pass the token to the next requesting process
+     */
+    private void exitCS(){
+        core.release();
+        logger.info("exit critical section " + core);
+    }
 
-        logger.info("exit send request" + " state:" + this.state_array + " reqNum "+ this.request_number);
+    /**
+     * Send requests to processes that might hold the token, as requestCS
+     */
+    public void sendRequest() throws RemoteException {
+        requestCS();
     }
 
     /**
@@ -171,16 +298,13 @@ public class DA_Singhal extends UnicastRemoteObject implements DA_Singhal_RMI, R
      * @throws RemoteException
      */
     public void requestCS() throws RemoteException{
-        Token token_temp = new Token();
-
-        if(this.state_array.get(index) == State.H) {
-            token_temp.setTN(this.request_number);
-            token_temp.setTS(this.state_array);
-
-            receiveToken(token_temp);
-        }else if(this.state_array.get(index) == State.O){
-            sendRequest();
-        }
+        dispatch(new Runnable() {
+            public void run() {
+                logger.info("into requestCS " + core);
+                if(core.request())
+                    entered();
+            }
+        });
     }
 
 
@@ -189,41 +313,13 @@ public class DA_Singhal extends UnicastRemoteObject implements DA_Singhal_RMI, R
      * @param srcId index of source process
      * @param reqNum request number
      */
-    public void receiveRequest(int srcId, int reqNum) throws RemoteException {
-        logger.info("into receiveRequest from "+ srcId + " state :" + this.state_array + "reqNum "+ this.request_number);
-        checkProcess(srcId);
-        request_number.set(srcId, reqNum);
-
-        switch (state_array.get(index)){
-            case O:{
-                state_array.set(srcId, State.R);
-                break;
+    public void receiveRequest(final int srcId, final int reqNum) throws RemoteException {
+        dispatch(new Runnable() {
+            public void run() {
+                logger.info("into receiveRequest from " + srcId + " " + core);
+                core.receiveRequest(srcId, reqNum);
             }
-            case E:{
-                state_array.set(srcId, State.R);
-                break;
-            }
-            case R:{
-                if(state_array.get(srcId) != State.R){
-                    state_array.set(srcId, State.R);
-                    processList.get(srcId).receiveRequest(index, request_number.get(index));
-                }
-                break;
-            }
-            case H:{
-                state_array.set(srcId, State.R);
-                state_array.set(srcId, State.O);
-
-                Token token = new Token();
-                token.setTN(request_number);
-                token.setTS(state_array);
-
-                sendToken(srcId, token);
-                break;
-            }
-        }
-
-        logger.info("exit receiveRequest" + "state array:" + this.state_array + "req Num "+ this.request_number);
+        });
     }
 
 
@@ -233,31 +329,44 @@ public class DA_Singhal extends UnicastRemoteObject implements DA_Singhal_RMI, R
     public void CS(){
         logger.info("Process" + index+" enters the critical section ");
         try{
-            Thread.sleep(2000);
+            Thread.sleep(CS_TIME);
         }catch (InterruptedException e){
             e.printStackTrace();
         }
         logger.info("Process" + index+" exits the critical section ");
     }
 
+    boolean isInCS(){
+        return core.isInCS();
+    }
+
+    public State getState(){
+        return core.getState();
+    }
+
+    int getCSCount(){
+        return core.getCSCount();
+    }
+
     /**
-     * Check whether the reference to remote process has been initialized or not
-     * @param index the index of process
+     * @return number of requests and tokens not sent yet
      */
-    private void checkProcess(int index){
-        //if the process of index node is not initialized, initialize it
-        if(!processList.containsKey(index)){
-            try {
-                DA_Singhal_RMI newProcess = (DA_Singhal_RMI) Naming.lookup(port.get(index));
-                processList.put(index, newProcess);
-            } catch (RemoteException e1) {
-                e1.printStackTrace();
-            } catch (MalformedURLException e2) {
-                e2.printStackTrace();
-            } catch (NotBoundException e3) {
-                e3.printStackTrace();
-            }
-        }
+    int getOutboundQueueSize(){
+        int size = 0;
+        for(PeerChannel<DA_Singhal_RMI> channel: channels.values())
+            size += channel.getQueueSize();
+        return size;
+    }
+
+    public void recordLockWait(long latency){
+        metrics.recordLockWait(latency);
+    }
+
+    /**
+     * @return token statistics of this process, also registered with JMX
+     */
+    public SinghalMetrics getMetrics(){
+        return metrics;
     }
 
     /**
@@ -15,6 +15,4 @@ public interface DA_Singhal_RMI extends Remote{
 
     void requestCS() throws RemoteException;
 
-    void processToken(Token token) throws RemoteException;
-
 }
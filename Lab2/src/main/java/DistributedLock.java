@@ -0,0 +1,217 @@
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The critical section of Singhal's algorithm as a Lock, so application code could guard its own work with it.
+ *
+ * lock requests the token like requestCS and blocks on a local condition until the token arrives and the
+ * process enters the critical section; unlock leaves the critical section and passes the token on. Threads
+ * of one process take the lock one at a time, in arrival order. The lock is not reentrant and supports
+ * no conditions.
+ *
+ * tryLock without a timeout takes the lock only if the token is idle at this process and never waits
+ * for it. A request of Singhal's algorithm could not be withdrawn: when tryLock times out or the thread
+ * is interrupted, the token is passed on right away once it arrives.
+ */
+public class DistributedLock implements Lock {
+
+    private CriticalSection process;
+
+    /**
+     * Lets the threads of this process take the distributed lock one at a time
+     */
+    private ReentrantLock entry = new ReentrantLock(true);
+
+    private ReentrantLock state = new ReentrantLock();
+    private Condition grantedCondition = state.newCondition();
+
+    /**
+     * Whether a thread waits for the token
+     */
+    private boolean waiting;
+
+    /**
+     * Whether the process entered the critical section for the waiting thread
+     */
+    private boolean granted;
+
+    /**
+     * Constructor, the process hands its critical sections to this lock from now on.
+     * @param process a process running in real time, or a resource of a LockTable
+     */
+    public DistributedLock(CriticalSection process){
+        this.process = process;
+        process.attach(this);
+    }
+
+    public void lock() {
+        enter();
+        entry.lock();
+        try{
+            acquire(false, false, 0);
+        }catch (InterruptedException e){
+            // not interruptible
+        }
+    }
+
+    public void lockInterruptibly() throws InterruptedException {
+        enter();
+        entry.lockInterruptibly();
+        try{
+            acquire(true, false, 0);
+        }catch (InterruptedException e){
+            entry.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Take the lock only if no other thread holds it and the token is idle at this process,
+     * i.e. no other process asked for it. Returns right away.
+     * @return true if the lock was taken
+     */
+    public boolean tryLock() {
+        enter();
+        if(!entry.tryLock())
+            return false;
+
+        if(process.tryRequestToken()){
+            process.recordLockWait(0);
+            return true;
+        }
+
+        entry.unlock();
+        return false;
+    }
+
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        enter();
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if(!entry.tryLock(time, unit))
+            return false;
+
+        boolean acquired = false;
+        try{
+            acquired = acquire(true, true, deadline - System.nanoTime());
+            return acquired;
+        }finally {
+            if(!acquired)
+                entry.unlock();
+        }
+    }
+
+    /**
+     * Leave the critical section, the token is passed on by the thread processing the tokens.
+     */
+    public void unlock() {
+        if(!entry.isHeldByCurrentThread())
+            throw new IllegalMonitorStateException("Lock of process is not held by " + Thread.currentThread().getName());
+
+        state.lock();
+        try{
+            granted = false;
+        }finally {
+            state.unlock();
+        }
+
+        process.releaseToken();
+        entry.unlock();
+    }
+
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("A distributed lock has no conditions");
+    }
+
+    /**
+     * Called by the process once it entered the critical section.
+     * @return false if no thread waits any more, the process leaves the critical section then
+     */
+    boolean grant(){
+        state.lock();
+        try{
+            if(!waiting)
+                return false;
+
+            granted = true;
+            grantedCondition.signal();
+            return true;
+        }finally {
+            state.unlock();
+        }
+    }
+
+    /**
+     * Wait for the answer of the thread owning a process. That thread never waits for the network,
+     * so the wait is short and not interrupted; an interrupt is kept for the caller.
+     * @param answer task queued on the thread owning the process
+     * @return the answer
+     */
+    static boolean await(Future<Boolean> answer){
+        boolean interrupted = false;
+        try{
+            while(true){
+                try{
+                    return answer.get();
+                }catch (InterruptedException e){
+                    interrupted = true;
+                }catch (ExecutionException e){
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enter(){
+        if(entry.isHeldByCurrentThread())
+            throw new IllegalMonitorStateException("Lock is not reentrant");
+    }
+
+    /**
+     * Request the token and wait until the process entered the critical section.
+     * @return false if the time elapsed before
+     */
+    private boolean acquire(boolean interruptible, boolean timed, long nanos) throws InterruptedException{
+        long start = System.nanoTime();
+        state.lock();
+        try{
+            waiting = true;
+            process.requestToken();
+
+            while(!granted){
+                if(timed && nanos <= 0){
+                    waiting = false;
+                    return false;
+                }
+
+                try{
+                    if(timed)
+                        nanos = grantedCondition.awaitNanos(nanos);
+                    else if(interruptible)
+                        grantedCondition.await();
+                    else
+                        grantedCondition.awaitUninterruptibly();
+                }catch (InterruptedException e){
+                    waiting = false;
+                    if(granted){
+                        granted = false;
+                        process.releaseToken();
+                    }
+                    throw e;
+                }
+            }
+
+            waiting = false;
+            process.recordLockWait(System.nanoTime() - start);
+            return true;
+        }finally {
+            state.unlock();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.Serializable;
+
+/**
+ * A request or a token of Singhal's algorithm for one resource of a LockTable.
+ */
+public class LockMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String resource;
+
+    /**
+     * Request number of a request, unused for a token
+     */
+    private int reqNum;
+
+    /**
+     * The token, null for a request
+     */
+    private Token token;
+
+    private LockMessage(String resource, int reqNum, Token token){
+        this.resource = resource;
+        this.reqNum = reqNum;
+        this.token = token;
+    }
+
+    public static LockMessage request(String resource, int reqNum){
+        return new LockMessage(resource, reqNum, null);
+    }
+
+    public static LockMessage token(String resource, Token token){
+        return new LockMessage(resource, 0, token);
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public int getReqNum() {
+        return reqNum;
+    }
+
+    public Token getToken() {
+        return token;
+    }
+
+    public boolean isToken(){
+        return token != null;
+    }
+
+    @Override
+    public String toString(){
+        return (isToken() ? "token " : "request " + reqNum + " ") + "for " + resource;
+    }
+}
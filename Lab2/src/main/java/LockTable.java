@@ -0,0 +1,401 @@
+import org.apache.log4j.Logger;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Locks named by resource over one group of processes: every resource runs its own instance of
+ * Singhal's algorithm, and all of them share the processes, their registry bindings and connections.
+ *
+ * The state of a resource is created on first use, by getLock or by the first message for it, so the
+ * processes need not agree on the resources in advance. Requests and tokens for any resource are queued
+ * per destination and sent as one batch once the messages already arrived are processed and the last
+ * call to the destination returned, so a busy process makes one call per peer for many messages. All resources of a process are handled by one thread,
+ * which hands the batches to a PeerChannel per peer and never waits for another process.
+ */
+public class LockTable extends UnicastRemoteObject implements LockTable_RMI {
+
+    /**
+     * Singhal's algorithm for one resource at this process
+     */
+    private class Resource implements CriticalSection, SinghalCore.Network {
+
+        private String name;
+
+        private SinghalCore core;
+
+        /**
+         * Lock handing the critical section of the resource to application threads
+         */
+        private volatile DistributedLock lock;
+
+        private Resource(String name){
+            this.name = name;
+            core = new SinghalCore(processNum, index, this);
+        }
+
+        public void attach(DistributedLock lock){
+            if(simulator != null)
+                throw new IllegalStateException("A lock blocks threads, it could not be used in virtual time");
+            this.lock = lock;
+        }
+
+        public void requestToken(){
+            executor.execute(new Runnable() {
+                public void run() {
+                    if(core.request())
+                        granted();
+                }
+            });
+        }
+
+        public boolean tryRequestToken(){
+            FutureTask<Boolean> entered = new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() {
+                    return core.tryEnter();
+                }
+            });
+            executor.execute(entered);
+            return DistributedLock.await(entered);
+        }
+
+        public void releaseToken(){
+            executor.execute(new Runnable() {
+                public void run() {
+                    core.release();
+                }
+            });
+        }
+
+        public State getState(){
+            return core.getState();
+        }
+
+        public void recordLockWait(long latency){
+            lockWait.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        }
+
+        public void sendRequest(int destId, int reqNum){
+            post(destId, LockMessage.request(name, reqNum));
+        }
+
+        public void sendToken(int destId, Token token){
+            post(destId, LockMessage.token(name, token));
+        }
+
+        private void receive(int srcId, LockMessage message){
+            if(message.isToken()){
+                core.receiveToken(message.getToken());
+                granted();
+            }else{
+                core.receiveRequest(srcId, message.getReqNum());
+            }
+        }
+
+        /**
+         * The process entered the critical section of the resource
+         */
+        private void granted(){
+            DistributedLock lock = this.lock;
+            // nobody waits for the critical section any more, e.g. after a timeout
+            if(lock != null && !lock.grant())
+                core.release();
+        }
+    }
+
+    /**
+     * The total number of process in the system
+     */
+    private int processNum;
+
+    /**
+     * The index of current process
+     */
+    private int index;
+
+    private ConcurrentHashMap<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
+
+    /**
+     * Scheduler of a simulation, null if the table runs in real time
+     */
+    private VirtualScheduler simulator;
+
+    /**
+     * Runs every step of every resource, the simulator in a simulation
+     */
+    private Executor executor;
+
+    /**
+     * Outbound queues to the other tables
+     */
+    private ConcurrentHashMap<Integer, PeerChannel<LockTable_RMI>> channels =
+            new ConcurrentHashMap<Integer, PeerChannel<LockTable_RMI>>();
+
+    /**
+     * Map of url of remote table and its process index.
+     */
+    private Map<Integer, String> port = new HashMap<Integer, String>();
+
+    /**
+     * Messages not sent yet, per destination
+     */
+    private Map<Integer, List<LockMessage>> outbox = new HashMap<Integer, List<LockMessage>>();
+
+    /**
+     * Whether a call to a destination is in flight
+     */
+    private boolean[] sending;
+
+    /**
+     * Whether a flush of the outbox is queued
+     */
+    private boolean flushing;
+
+    private volatile long messageCount;
+
+    private volatile long batchCount;
+
+    private LatencyHistogram lockWait = new LatencyHistogram();
+
+    final static Logger logger = Logger.getLogger(LockTable.class);
+
+    /**
+     * Constructor
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     * @param urls urls the tables of all processes are bound to, by index
+     */
+    public LockTable(int processNum, int index, String[] urls) throws RemoteException {
+        this(processNum, index, (VirtualScheduler) null);
+
+        for(int i = 0; i < urls.length; i ++)
+            port.put(i, urls[i]);
+    }
+
+    /**
+     * Constructor of a table in a simulation, the other tables are connected with connect.
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     * @param simulator scheduler running the steps in virtual time
+     */
+    public LockTable(int processNum, int index, VirtualScheduler simulator) throws RemoteException {
+        this.processNum = processNum;
+        this.index = index;
+        this.simulator = simulator;
+        sending = new boolean[processNum];
+
+        if(simulator == null){
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "LockTable-" + LockTable.this.index);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }else{
+            executor = simulator;
+        }
+    }
+
+    /**
+     * Connect to another table without looking it up in the registry.
+     * @param index index of the process
+     * @param table the table or a stub of it
+     */
+    void connect(int index, LockTable_RMI table){
+        channels.put(index, newChannel(index, table));
+    }
+
+    private PeerChannel<LockTable_RMI> channel(int index){
+        PeerChannel<LockTable_RMI> channel = channels.get(index);
+        if(channel == null){
+            channel = newChannel(index, null);
+            PeerChannel<LockTable_RMI> existing = channels.putIfAbsent(index, channel);
+            if(existing != null)
+                channel = existing;
+        }
+        return channel;
+    }
+
+    /**
+     * A simulation makes the calls in virtual time, on the simulator
+     */
+    private PeerChannel<LockTable_RMI> newChannel(int index, LockTable_RMI table){
+        String name = "LockTable-" + this.index + "-to-" + index;
+        if(simulator != null)
+            return new PeerChannel<LockTable_RMI>(name, port.get(index), table, simulator);
+        return new PeerChannel<LockTable_RMI>(name, port.get(index), table);
+    }
+
+    /**
+     * Get the lock of a resource, the same lock for every call with the same name.
+     * @param name name of the resource, the same at every process
+     * @return lock shared by the threads of this process
+     */
+    public Lock getLock(String name){
+        Resource resource = resource(name);
+        synchronized (resource){
+            if(resource.lock == null)
+                new DistributedLock(resource);
+            return resource.lock;
+        }
+    }
+
+    public void receive(final int src, final List<LockMessage> messages) throws RemoteException {
+        executor.execute(new Runnable() {
+            public void run() {
+                for(LockMessage message: messages)
+                    resource(message.getResource()).receive(src, message);
+            }
+        });
+    }
+
+    private Resource resource(String name){
+        Resource resource = resources.get(name);
+        if(resource == null){
+            resource = new Resource(name);
+            Resource existing = resources.putIfAbsent(name, resource);
+            if(existing != null)
+                resource = existing;
+        }
+        return resource;
+    }
+
+    /**
+     * Queue a message, the first message queued since the last flush queues the next flush.
+     */
+    private void post(int destId, LockMessage message){
+        List<LockMessage> batch = outbox.get(destId);
+        if(batch == null){
+            batch = new ArrayList<LockMessage>();
+            outbox.put(destId, batch);
+        }
+        batch.add(message);
+
+        if(!flushing){
+            flushing = true;
+            executor.execute(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Hand the queued messages to the channels, one call per destination. While a call to a
+     * destination is in flight, the messages for it wait and join the next batch.
+     */
+    private void flush(){
+        flushing = false;
+        Iterator<Map.Entry<Integer, List<LockMessage>>> iter = outbox.entrySet().iterator();
+        while(iter.hasNext()){
+            Map.Entry<Integer, List<LockMessage>> entry = iter.next();
+            final int destId = entry.getKey();
+            if(sending[destId])
+                continue;
+
+            final List<LockMessage> batch = entry.getValue();
+            iter.remove();
+            sending[destId] = true;
+            channel(destId).send(new PeerChannel.Call<LockTable_RMI>() {
+                public void invoke(LockTable_RMI peer) throws RemoteException {
+                    peer.receive(index, batch);
+                }
+            }, new Runnable() {
+                public void run() {
+                    sent(destId);
+                }
+            });
+            messageCount += batch.size();
+            batchCount ++;
+        }
+    }
+
+    /**
+     * The batch to a destination was delivered or dropped, send what queued up meanwhile
+     */
+    private void sent(final int destId){
+        executor.execute(new Runnable() {
+            public void run() {
+                sending[destId] = false;
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Request the critical section of a resource without a lock, for simulations.
+     */
+    void request(String name){
+        resource(name).requestToken();
+    }
+
+    /**
+     * Leave the critical section of a resource without a lock, for simulations.
+     */
+    void release(String name){
+        resource(name).releaseToken();
+    }
+
+    boolean isInCS(String name){
+        return resource(name).core.isInCS();
+    }
+
+    int getCSCount(String name){
+        return resource(name).core.getCSCount();
+    }
+
+    /**
+     * @return number of resources this process knows of
+     */
+    public int getResourceCount(){
+        return resources.size();
+    }
+
+    /**
+     * @return number of requests and tokens sent or queued
+     */
+    public long getMessageCount(){
+        return messageCount;
+    }
+
+    /**
+     * @return number of calls sending them
+     */
+    public long getBatchCount(){
+        return batchCount;
+    }
+
+    /**
+     * @return number of batches not sent yet
+     */
+    public int getOutboundQueueSize(){
+        int size = 0;
+        for(PeerChannel<LockTable_RMI> channel: channels.values())
+            size += channel.getQueueSize();
+        return size;
+    }
+
+    /**
+     * @return microseconds threads waited for the locks of this table
+     */
+    public LatencyHistogram getLockWait(){
+        return lockWait;
+    }
+}
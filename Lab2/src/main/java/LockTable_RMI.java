@@ -0,0 +1,15 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+
+public interface LockTable_RMI extends Remote{
+
+    /**
+     * Receive the requests and tokens another process sent for any of the resources, in sending order.
+     * @param src index of source process
+     * @param messages messages of one batch
+     */
+    void receive(int src, List<LockMessage> messages) throws RemoteException ;
+
+}
@@ -0,0 +1,271 @@
+import org.apache.log4j.Logger;
+
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outbound queue of the calls of one process to one peer. The sender queues a call and goes on; the
+ * channel makes the calls one at a time in queue order, so the peer receives them in the order they were
+ * sent, and a process never waits for the network or for another process.
+ *
+ * The calls of all channels in the JVM run on one shared pool of sender threads, a channel uses at most
+ * one of them at a time and only while it has calls queued.
+ *
+ * A call which surely did not reach the peer, e.g. because the peer is not bound yet, is repeated after a
+ * backoff before any later call is made. The channel gives its thread back while it waits for the retry.
+ * A call failing otherwise is logged and dropped, since it might have been executed already.
+ */
+public class PeerChannel<T extends Remote> {
+
+    /**
+     * A call to the peer
+     */
+    public interface Call<T> {
+
+        void invoke(T peer) throws RemoteException;
+    }
+
+    /**
+     * A queued call and what to run once it is done with
+     */
+    private static class Pending<T> {
+        private Call<T> call;
+        private Runnable done;
+        private int attempts;
+
+        private Pending(Call<T> call, Runnable done){
+            this.call = call;
+            this.done = done;
+        }
+    }
+
+    final static Logger logger = Logger.getLogger(PeerChannel.class);
+
+    private static final int MIN_BACKOFF = 100;
+    private static final int MAX_BACKOFF = 10000;
+
+    /**
+     * Number of calls a channel makes before it gives its thread to the other channels
+     */
+    private static final int CALLS_PER_DRAIN = 64;
+
+    /**
+     * Threads making the calls of all channels, a thread per channel with a call in progress
+     */
+    private static final ExecutorService senders = Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "peer-sender-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Fires the retries of all channels, handing them back to the senders
+     */
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "peer-retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private String name;
+
+    /**
+     * Url the peer is looked up at, null if only the stub given is used
+     */
+    private String url;
+
+    private volatile T peer;
+
+    /**
+     * Runs the calls and the retries in virtual time, null if they run on the senders
+     */
+    private VirtualScheduler simulator;
+
+    private Queue<Pending<T>> calls = new ConcurrentLinkedQueue<Pending<T>>();
+
+    /**
+     * Whether a drain of the queue is running, queued on the senders or waiting for a retry
+     */
+    private AtomicBoolean draining = new AtomicBoolean(false);
+
+    /**
+     * Number of calls queued or running
+     */
+    private AtomicInteger queued = new AtomicInteger();
+
+    private Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor of a channel making its calls on the shared senders
+     * @param name name of the channel, for logs
+     * @param url url of the peer in the registry, may be null if peer is given
+     * @param peer the peer or a stub of it, null to look it up on the first call
+     */
+    public PeerChannel(String name, String url, T peer){
+        this(name, url, peer, null);
+    }
+
+    /**
+     * Constructor of a channel making its calls and waiting for its retries in virtual time
+     * @param simulator scheduler of the simulation, null to make the calls on the shared senders
+     */
+    public PeerChannel(String name, String url, T peer, VirtualScheduler simulator){
+        this.name = name;
+        this.url = url;
+        this.peer = peer;
+        this.simulator = simulator;
+    }
+
+    /**
+     * Queue a call to the peer
+     * @param call the call
+     */
+    public void send(Call<T> call){
+        send(call, null);
+    }
+
+    /**
+     * Queue a call to the peer and get notified once it is done with
+     * @param call the call
+     * @param done run once, after the call returned or after it was dropped, may be null
+     */
+    public void send(Call<T> call, Runnable done){
+        queued.incrementAndGet();
+        calls.add(new Pending<T>(call, done));
+        schedule(0);
+    }
+
+    /**
+     * @return number of calls queued or running
+     */
+    public int getQueueSize(){
+        return queued.get();
+    }
+
+    /**
+     * Start a drain unless one is running or waiting already
+     * @param delay delay in milliseconds
+     */
+    private void schedule(long delay){
+        if(draining.compareAndSet(false, true))
+            start(delay);
+    }
+
+    private void start(long delay){
+        if(simulator != null)
+            simulator.schedule(drain, delay);
+        else if(delay == 0)
+            senders.execute(drain);
+        else
+            timer.schedule(new Runnable() {
+                public void run() {
+                    senders.execute(drain);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make the queued calls in order. Stops at a call to retry, which starts the next drain after its backoff.
+     */
+    private void drain(){
+        int count = 0;
+        Pending<T> pending;
+        while(count ++ < CALLS_PER_DRAIN && (pending = calls.peek()) != null){
+            if(!deliver(pending)){
+                start(Math.min(MAX_BACKOFF, (long) MIN_BACKOFF << Math.min(pending.attempts ++, 16)));
+                return;
+            }
+
+            calls.poll();
+            queued.decrementAndGet();
+            if(pending.done != null)
+                pending.done.run();
+        }
+
+        draining.set(false);
+
+        // calls left by a bounded drain, or queued after the last peek but before the flag was cleared
+        if(!calls.isEmpty())
+            schedule(0);
+    }
+
+    /**
+     * Make a call once.
+     * @return false if the call did not reach the peer and should be repeated
+     */
+    private boolean deliver(Pending<T> pending){
+        try{
+            pending.call.invoke(resolve());
+        }catch (RemoteException e){
+            if(!isNotExecuted(e)){
+                logger.error("Failed to call " + name);
+                e.printStackTrace();
+                return true;
+            }
+
+            logger.warn("Could not reach " + name + ", retrying: " + e.getMessage());
+            if(url != null)
+                peer = null;
+            return false;
+        }catch (RuntimeException e){
+            logger.error("Failed to call " + name);
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T resolve() throws RemoteException {
+        T stub = peer;
+        if(stub == null){
+            if(url == null)
+                throw new ConnectException(name + " is not connected");
+
+            try{
+                stub = (T) Naming.lookup(url);
+            }catch (NotBoundException e1){
+                throw new ConnectException(name + " is not bound at " + url);
+            }catch (MalformedURLException e2){
+                throw new RemoteException("Malformed url of " + name, e2);
+            }
+            peer = stub;
+        }
+        return stub;
+    }
+
+    /**
+     * Check whether a failed call surely did not reach the peer, so it could be repeated
+     * without delivering a message twice.
+     * @param e exception thrown by the call
+     */
+    public static boolean isNotExecuted(RemoteException e){
+        return e instanceof ConnectException || e instanceof ConnectIOException ||
+                e instanceof NoSuchObjectException || e instanceof UnknownHostException;
+    }
+}
@@ -13,8 +13,11 @@ public class ProcessManager {
 
     final static Logger logger = Logger.getLogger(ProcessManager.class);
     private static String prefix = "rmi://";
+    private static String lockSuffix = "-locks";
 
-    public static String[] readConfiguration(){
+    private static LockTable lockTable;
+
+    public static PropertiesConfiguration loadConfiguration(){
         // initialize node property
         PropertiesConfiguration config = new PropertiesConfiguration();
         try{
@@ -27,17 +30,40 @@ public class ProcessManager {
             e2.printStackTrace();
         }
 
+        return config;
+    }
 
-        String[] urls = config.getStringArray("node_url");
+    public static String[] readConfiguration(){
+        String[] urls = loadConfiguration().getStringArray("node_url");
         logger.info("read url : " +  urls[0]);
         return urls;
     }
 
     /**
-     *
+     * The lock tables are bound next to the processes, at their urls with a suffix.
+     * @param urls urls of the processes
+     * @return urls of the lock tables, by index
+     */
+    public static String[] lockTableUrls(String[] urls){
+        String[] lockUrls = new String[urls.length];
+        for(int i = 0; i < urls.length; i ++)
+            lockUrls[i] = urls[i] + lockSuffix;
+        return lockUrls;
+    }
+
+    /**
+     * @return the lock table of this process, null unless lock_table = true in url.properties
+     */
+    public static LockTable getLockTable(){
+        return lockTable;
+    }
+
+    /**
+     * Start the process, and its lock table if lock_table = true in url.properties.
      */
     public static void startServer(int index) {
-        String[] urls = readConfiguration();
+        PropertiesConfiguration config = loadConfiguration();
+        String[] urls = config.getStringArray("node_url");
 
         try {
             DA_Singhal process = new DA_Singhal(urls.length, index);
@@ -45,6 +71,12 @@ public class ProcessManager {
             new Thread(process).start();
             Naming.bind("rmi://localhost/SES", process);
 
+            if(config.getBoolean("lock_table", false)){
+                lockTable = new LockTable(urls.length, index, lockTableUrls(urls));
+                Naming.bind("rmi://localhost/SES" + lockSuffix, lockTable);
+                logger.info("create lock table at " + urls[index] + lockSuffix);
+            }
+
         }catch (RemoteException e1) {
             e1.printStackTrace();
         } catch (AlreadyBoundException e2) {
@@ -0,0 +1,204 @@
+/**
+ * Singhal's algorithm for one critical section at one process, without threads or RMI: the state
+ * and request number this process knows of every process, and the token while it is in the critical section.
+ *
+ * Requests and tokens for other processes are handed to a Network; the owner feeds in the requests
+ * and tokens that arrive. Not thread-safe, all calls should come from the one thread owning the process.
+ */
+public class SinghalCore {
+
+    /**
+     * Outgoing messages of the algorithm
+     */
+    public interface Network {
+
+        void sendRequest(int destId, int reqNum);
+
+        void sendToken(int destId, Token token);
+    }
+
+    private int processNum;
+
+    private int index;
+
+    private State[] state_array;
+
+    private int[] request_number;
+
+    /**
+     * The token while the process is in the critical section
+     */
+    private Token token;
+
+    /**
+     * Number of times the process entered the critical section, also read by other threads
+     */
+    private volatile int csCount;
+
+    private Network network;
+
+    /**
+     * Constructor, process 0 holds the token at first.
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     * @param network destination of the requests and tokens of the process
+     */
+    public SinghalCore(int processNum, int index, Network network){
+        this.processNum = processNum;
+        this.index = index;
+        this.network = network;
+
+        state_array = new State[processNum];
+        request_number = new int[processNum];
+        for(int i = 0; i < processNum; i ++)
+            state_array[i] = i < index ? State.R : State.O;
+        if(index == 0)
+            state_array[0] = State.H;
+    }
+
+    /**
+     * Request the critical section, ignored while the process requests or executes it already.
+     * @return true if the process held the idle token and entered the critical section right away
+     */
+    public boolean request(){
+        if(state_array[index] == State.H){
+            token = newToken();
+            enter();
+            return true;
+        }
+
+        if(state_array[index] == State.O){
+            state_array[index] = State.R;
+            request_number[index] ++;
+
+            for(int i = 0; i < processNum; i ++){
+                if(i != index && state_array[i] == State.R)
+                    network.sendRequest(i, request_number[index]);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Enter the critical section only if the process holds the idle token, without requesting it otherwise.
+     * @return true if the process entered the critical section
+     */
+    public boolean tryEnter(){
+        if(state_array[index] != State.H)
+            return false;
+
+        token = newToken();
+        enter();
+        return true;
+    }
+
+    /**
+     * Receive the request of another process
+     * @param srcId index of source process
+     * @param reqNum request number
+     */
+    public void receiveRequest(int srcId, int reqNum){
+        request_number[srcId] = reqNum;
+
+        switch (state_array[index]){
+            case O:
+            case E:{
+                state_array[srcId] = State.R;
+                break;
+            }
+            case R:{
+                if(state_array[srcId] != State.R){
+                    state_array[srcId] = State.R;
+                    network.sendRequest(srcId, request_number[index]);
+                }
+                break;
+            }
+            case H:{
+                state_array[srcId] = State.R;
+                state_array[index] = State.O;
+                network.sendToken(srcId, newToken());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Receive the token, the process enters the critical section.
+     * @param token the token to be received
+     */
+    public void receiveToken(Token token){
+        this.token = token;
+        enter();
+    }
+
+    /**
+     * Leave the critical section and pass the token to the next requesting process, if any.
+     */
+    public void release(){
+        if(token == null)
+            throw new IllegalStateException("Process " + index + " is not in the critical section");
+
+        Token token = this.token;
+        this.token = null;
+
+        state_array[index] = State.O;
+        token.setTS(index, State.O);
+
+        // update knowledge for both token and process
+        for(int i = 0; i < processNum; i ++){
+            if(request_number[i] > token.getTN(i)){
+                token.setTN(i, request_number[i]);
+                token.setTS(i, state_array[i]);
+
+                if(state_array[i] == State.R)
+                    token.addPossibleOwner(i);
+            }else{
+                request_number[i] = token.getTN(i);
+                state_array[i] = token.getTS(i);
+            }
+        }
+
+        int next = token.retrieveNextOwner();
+        if(next == -1)
+            state_array[index] = State.H;
+        else
+            network.sendToken(next, token);
+    }
+
+    private void enter(){
+        state_array[index] = State.E;
+        csCount ++;
+    }
+
+    private Token newToken(){
+        Token token = new Token(processNum);
+        for(int i = 0; i < processNum; i ++){
+            token.setTN(i, request_number[i]);
+            token.setTS(i, state_array[i]);
+        }
+        return token;
+    }
+
+    public State getState(){
+        return state_array[index];
+    }
+
+    public boolean isInCS(){
+        return state_array[index] == State.E;
+    }
+
+    public int getCSCount(){
+        return csCount;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder("state array [");
+        for(int i = 0; i < processNum; i ++)
+            builder.append(i == 0 ? "" : ", ").append(state_array[i]);
+        builder.append("] request numbers [");
+        for(int i = 0; i < processNum; i ++)
+            builder.append(i == 0 ? "" : ", ").append(request_number[i]);
+        return builder.append("]").toString();
+    }
+}
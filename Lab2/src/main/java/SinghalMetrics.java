@@ -0,0 +1,152 @@
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Token statistics of one process: the delay between the arrival of the token and the entry into the
+ * critical section, the duration of the call handing the token to the next process, the time threads
+ * waited for a DistributedLock, the threads processing tokens and the messages not sent yet.
+ * Registered with the platform MBean server as DA:type=Singhal,process=index.
+ */
+public class SinghalMetrics implements SinghalMetricsMBean {
+
+    final static Logger logger = Logger.getLogger(SinghalMetrics.class);
+
+    private DA_Singhal process;
+
+    /**
+     * Threads processing the tokens, null in a simulation
+     */
+    private ThreadPoolExecutor executor;
+
+    private LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private LatencyHistogram sendLatency = new LatencyHistogram();
+    private LatencyHistogram lockWait = new LatencyHistogram();
+
+    public SinghalMetrics(DA_Singhal process, ThreadPoolExecutor executor){
+        this.process = process;
+        this.executor = executor;
+    }
+
+    /**
+     * Register the statistics with the platform MBean server, replacing the statistics of an earlier
+     * process with the same index in this JVM.
+     * @param index index of the process
+     */
+    public void register(int index){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("DA:type=Singhal,process=" + index);
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }catch (Exception e){
+            logger.error("Failed to register statistics of process " + index + ": " + e);
+        }
+    }
+
+    /**
+     * @param latency nanoseconds between the arrival of the token and the entry into the critical section
+     */
+    public void recordDispatch(long latency){
+        dispatchLatency.record(TimeUnit.NANOSECONDS.toMicros(latency));
+    }
+
+    /**
+     * @param latency nanoseconds the next process took to accept the token
+     */
+    public void recordSend(long latency){
+        sendLatency.record(TimeUnit.NANOSECONDS.toMicros(latency));
+    }
+
+    /**
+     * @param latency nanoseconds a thread waited for a DistributedLock
+     */
+    public void recordLockWait(long latency){
+        lockWait.record(TimeUnit.NANOSECONDS.toMicros(latency));
+    }
+
+    public long getTokenCount() {
+        return dispatchLatency.getCount();
+    }
+
+    public long getDispatchLatencyP50() {
+        return dispatchLatency.getPercentile(50);
+    }
+
+    public long getDispatchLatencyP99() {
+        return dispatchLatency.getPercentile(99);
+    }
+
+    public long getDispatchLatencyMax() {
+        return dispatchLatency.getMax();
+    }
+
+    public long getSendLatencyP50() {
+        return sendLatency.getPercentile(50);
+    }
+
+    public long getSendLatencyP99() {
+        return sendLatency.getPercentile(99);
+    }
+
+    public long getSendLatencyMax() {
+        return sendLatency.getMax();
+    }
+
+    public long getSendCount() {
+        return sendLatency.getCount();
+    }
+
+    public long getLockCount() {
+        return lockWait.getCount();
+    }
+
+    public long getLockWaitP50() {
+        return lockWait.getPercentile(50);
+    }
+
+    public long getLockWaitP99() {
+        return lockWait.getPercentile(99);
+    }
+
+    public long getLockWaitMax() {
+        return lockWait.getMax();
+    }
+
+    public int getDispatchThreads() {
+        return executor == null ? 0 : executor.getPoolSize();
+    }
+
+    public int getDispatchThreadsMax() {
+        return executor == null ? 0 : executor.getLargestPoolSize();
+    }
+
+    public int getDispatchQueueSize() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public int getOutboundQueueSize() {
+        return process.getOutboundQueueSize();
+    }
+
+    public int getCSCount() {
+        return process.getCSCount();
+    }
+
+    public void reset() {
+        dispatchLatency.reset();
+        sendLatency.reset();
+        lockWait.reset();
+    }
+
+    @Override
+    public String toString(){
+        return "dispatch latency (us) " + dispatchLatency + ", send latency (us) " + sendLatency +
+                ", lock wait (us) " + lockWait + ", threads " + getDispatchThreads();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Management interface of the token statistics of one process, exposed through JMX.
+ * Latencies are in microseconds.
+ */
+public interface SinghalMetricsMBean {
+
+    long getTokenCount();
+
+    long getDispatchLatencyP50();
+
+    long getDispatchLatencyP99();
+
+    long getDispatchLatencyMax();
+
+    long getSendLatencyP50();
+
+    long getSendLatencyP99();
+
+    long getSendLatencyMax();
+
+    long getSendCount();
+
+    long getLockCount();
+
+    long getLockWaitP50();
+
+    long getLockWaitP99();
+
+    long getLockWaitMax();
+
+    int getDispatchThreads();
+
+    int getDispatchThreadsMax();
+
+    int getDispatchQueueSize();
+
+    int getOutboundQueueSize();
+
+    int getCSCount();
+
+    /**
+     * Clear all histograms.
+     */
+    void reset();
+}
@@ -1,54 +1,72 @@
-import java.io.Serializable;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class Token implements Serializable {
+/**
+ * The token of Singhal's algorithm: per process the latest request number (TN) and state (TS) known
+ * to the token, and the processes waiting for it.
+ *
+ * Backed by arrays, so reading and updating an entry is O(1) and passing the token on is linear in the
+ * number of processes. Serialized by hand: request numbers as varints, states as 2 bits each, so a
+ * token takes little more than one byte per process.
+ */
+public class Token implements Externalizable {
 
-    private List<Integer> TN;
-    private List<State> TS;
-    private Queue<Integer> queue;
+    private static final State[] STATES = State.values();
 
-    public Token(){
-        TN = new LinkedList<Integer>();
-        TS =new LinkedList<State>();
-        queue = new LinkedList<Integer>();
-    }
+    private int[] TN;
+    private byte[] TS;
 
-    public void setTN(List<Integer> TN) {
-        this.TN.clear();
+    /**
+     * Waiting processes as a ring of the processes in order of arrival, each process at most once
+     */
+    private int[] queue;
+    private int head;
+    private int size;
+    private boolean[] queued;
 
-        for(Integer i: TN)
-            this.TN.add(new Integer(i));
+    /**
+     * Constructor for deserialization only
+     */
+    public Token(){
+        this(0);
     }
 
-    public void setTN(int index, Integer num) {
-        this.TN.set(index, num);
+    /**
+     * Constructor
+     * @param processNum Number of processes in the system
+     */
+    public Token(int processNum){
+        TN = new int[processNum];
+        TS = new byte[processNum];
+        queue = new int[processNum];
+        queued = new boolean[processNum];
     }
 
-    public void setTS(List<State> TS) {
-        this.TS.clear();
+    public void setTN(int index, int num) {
+        TN[index] = num;
+    }
 
-        for(State s: TS){
-            switch (s){
-                case E: this.TS.add(State.E); break;
-                case H: this.TS.add(State.H); break;
-                case R: this.TS.add(State.R); break;
-                case O: this.TS.add(State.O); break;
-            }
-        }
+    public int getTN(int index) {
+        return TN[index];
     }
 
-    public void setTS(int index,State state0) {
-        this.TS.set(index,state0);
+    public void setTS(int index, State state0) {
+        TS[index] = (byte) state0.ordinal();
     }
 
-    public List<Integer> getTN() {
-        return TN;
+    public State getTS(int index) {
+        return STATES[TS[index]];
     }
 
-    public List<State> getTS() {
-        return TS;
+    /**
+     * @return number of processes in the system
+     */
+    public int size() {
+        return TN.length;
     }
 
     /**
@@ -57,10 +75,14 @@ public class Token implements Serializable {
      *         -1 if queue is empty
      */
     public int retrieveNextOwner(){
-        if (queue.isEmpty())
+        if (size == 0)
             return -1;
-        else
-            return queue.poll();
+
+        int next = queue[head];
+        head = (head + 1) % queue.length;
+        size --;
+        queued[next] = false;
+        return next;
     }
 
     /**
@@ -68,9 +90,88 @@ public class Token implements Serializable {
      * @param index
      */
     public void addPossibleOwner(int index){
-        if (!queue.contains(index))
-           queue.add(index);
+        if (!queued[index]){
+            queue[(head + size) % queue.length] = index;
+            size ++;
+            queued[index] = true;
+        }
     }
 
+    /**
+     * Write the number of processes, the request numbers as varints, the states 4 to a byte,
+     * then the waiting processes in order.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeVarInt(out, TN.length);
+        for(int num: TN)
+            writeVarInt(out, num);
 
+        for(int i = 0; i < TS.length; i += 4){
+            int packed = 0;
+            for(int j = i; j < i + 4 && j < TS.length; j ++)
+                packed |= TS[j] << ((j - i) * 2);
+            out.writeByte(packed);
+        }
+
+        writeVarInt(out, size);
+        for(int i = 0; i < size; i ++)
+            writeVarInt(out, queue[(head + i) % queue.length]);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        int processNum = readVarInt(in);
+        TN = new int[processNum];
+        TS = new byte[processNum];
+        queue = new int[processNum];
+        queued = new boolean[processNum];
+        head = 0;
+        size = 0;
+
+        for(int i = 0; i < processNum; i ++)
+            TN[i] = readVarInt(in);
+
+        for(int i = 0; i < processNum; i += 4){
+            int packed = in.readUnsignedByte();
+            for(int j = i; j < i + 4 && j < processNum; j ++)
+                TS[j] = (byte) ((packed >>> ((j - i) * 2)) & 3);
+        }
+
+        int waiting = readVarInt(in);
+        for(int i = 0; i < waiting; i ++){
+            int index = readVarInt(in);
+            if(index < 0 || index >= processNum)
+                throw new IOException("Malformed token, waiting process " + index + " of " + processNum);
+            addPossibleOwner(index);
+        }
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while((value & ~0x7f) != 0){
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder("TN [");
+        for(int i = 0; i < TN.length; i ++)
+            builder.append(i == 0 ? "" : ", ").append(TN[i]);
+        builder.append("] TS [");
+        for(int i = 0; i < TS.length; i ++)
+            builder.append(i == 0 ? "" : ", ").append(STATES[TS[i]]);
+        return builder.append("] waiting ").append(size).toString();
+    }
 }
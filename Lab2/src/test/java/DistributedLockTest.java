@@ -0,0 +1,216 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Takes the locks of two processes running in real time in this JVM from application threads, one thread
+ * per process. Process 0 holds the token at first.
+ */
+public class DistributedLockTest {
+
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * Time to wait for something which must not happen, in milliseconds
+     */
+    private static final long BLOCKED = 300;
+
+    /**
+     * A step of an application thread with the lock of its process
+     */
+    private interface Step {
+
+        boolean run(DistributedLock lock) throws InterruptedException;
+    }
+
+    private static final Step LOCK = new Step() {
+        public boolean run(DistributedLock lock) {
+            lock.lock();
+            return true;
+        }
+    };
+
+    private static final Step TRY_LOCK = new Step() {
+        public boolean run(DistributedLock lock) {
+            return lock.tryLock();
+        }
+    };
+
+    private static final Step UNLOCK = new Step() {
+        public boolean run(DistributedLock lock) {
+            lock.unlock();
+            return true;
+        }
+    };
+
+    private DA_Singhal[] processes;
+
+    private DistributedLock[] locks;
+
+    /**
+     * Application thread of every process, a lock is unlocked by the thread which took it
+     */
+    private ExecutorService[] threads;
+
+    @Before
+    public void initialize() throws RemoteException{
+        Logger.getRootLogger().setLevel(Level.WARN);
+        processes = TestNetwork.connected(2);
+        locks = new DistributedLock[2];
+        threads = new ExecutorService[2];
+        for(int i = 0; i < 2; i ++){
+            locks[i] = new DistributedLock(processes[i]);
+            threads[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    @After
+    public void shutdown(){
+        for(ExecutorService thread: threads)
+            thread.shutdownNow();
+    }
+
+    @Test(timeout = 20000)
+    public void testLockAndUnlock() throws Exception{
+        assertTrue(call(0, LOCK));
+
+        // P1 waits while P0 holds the lock
+        Future<Boolean> waiting = submit(1, LOCK);
+        assertBlocked(waiting);
+
+        call(0, UNLOCK);
+        assertTrue(waiting.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        call(1, UNLOCK);
+
+        assertEquals(1, processes[0].getCSCount());
+        assertEquals(1, processes[1].getCSCount());
+        assertEquals(1, processes[1].getMetrics().getLockCount());
+    }
+
+    @Test(timeout = 20000)
+    public void testTryLock() throws Exception{
+        // the token is idle at P0 only
+        assertFalse(call(1, TRY_LOCK));
+        assertTrue(call(0, TRY_LOCK));
+
+        // neither another thread of P0 nor P1 gets it meanwhile
+        assertFalse(locks[0].tryLock());
+        assertFalse(call(1, TRY_LOCK));
+        call(0, UNLOCK);
+
+        // once the token moved to P1, it is idle there
+        call(1, LOCK);
+        call(1, UNLOCK);
+        assertFalse(call(0, TRY_LOCK));
+        assertTrue(call(1, TRY_LOCK));
+        call(1, UNLOCK);
+
+        assertEquals(1, processes[0].getCSCount());
+        assertEquals(1, processes[0].getMetrics().getLockCount());
+        assertEquals(2, processes[1].getCSCount());
+    }
+
+    @Test(timeout = 20000)
+    public void testTryLockTimeout() throws Exception{
+        call(0, LOCK);
+        assertFalse(call(1, tryLock(BLOCKED)));
+
+        // the request of P1 stays, the token visits P1 and comes back once P0 asks again
+        call(0, UNLOCK);
+        assertTrue(call(0, tryLock(TIMEOUT)));
+        call(0, UNLOCK);
+        assertEquals(0, processes[1].getMetrics().getLockCount());
+
+        assertTrue(call(1, tryLock(TIMEOUT)));
+        call(1, UNLOCK);
+        assertEquals(1, processes[1].getMetrics().getLockCount());
+    }
+
+    @Test(timeout = 20000)
+    public void testInterrupt() throws Exception{
+        call(0, LOCK);
+
+        final AtomicReference<String> outcome = new AtomicReference<String>();
+        Thread waiting = new Thread(new Runnable() {
+            public void run() {
+                try{
+                    locks[1].lockInterruptibly();
+                    outcome.set("locked");
+                }catch (InterruptedException e){
+                    outcome.set("interrupted");
+                }
+            }
+        });
+        waiting.start();
+        waiting.join(BLOCKED);
+        assertTrue(waiting.isAlive());
+        waiting.interrupt();
+        waiting.join(TIMEOUT);
+        assertEquals("interrupted", outcome.get());
+
+        // the token passes through P1 unused, then both processes take the lock again
+        call(0, UNLOCK);
+        assertTrue(call(1, tryLock(TIMEOUT)));
+        call(1, UNLOCK);
+        assertTrue(call(0, tryLock(TIMEOUT)));
+        call(0, UNLOCK);
+        assertEquals(1, processes[1].getMetrics().getLockCount());
+    }
+
+    private static Step tryLock(final long timeout){
+        return new Step() {
+            public boolean run(DistributedLock lock) throws InterruptedException {
+                return lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    /**
+     * Run a step on the application thread of a process
+     */
+    private Future<Boolean> submit(final int process, final Step step){
+        return threads[process].submit(new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                return step.run(locks[process]);
+            }
+        });
+    }
+
+    /**
+     * Run a step on the application thread of a process and wait for it
+     */
+    private boolean call(int process, Step step) throws Exception{
+        try{
+            return submit(process, step).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }catch (ExecutionException e){
+            if(e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private void assertBlocked(Future<Boolean> step) throws Exception{
+        try{
+            step.get(BLOCKED, TimeUnit.MILLISECONDS);
+            throw new AssertionError("the lock was taken while another process held it");
+        }catch (TimeoutException e){
+            // still waiting
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a lock table in virtual time: processes request the critical sections of a few resources
+ * at once at random times, every call between processes takes a random delay.
+ */
+public class LockTableSimulationTest {
+
+    private static final int PROCESS_NUM = 4;
+    private static final int RESOURCE_NUM = 20;
+    private static final int BURST_NUM = 100;
+    private static final int BURST_SIZE = 3;
+    private static final int DURATION = 30000;
+    private static final int MAX_DELAY = 500;
+    private static final int MAX_CS_TIME = 1000;
+
+    @Before
+    public void initialize(){
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Test(timeout = 10000)
+    public void testMutualExclusion() throws RemoteException{
+        List<String> run = simulate(1);
+        assertEquals(run, simulate(1));
+    }
+
+    /**
+     * Run one scenario and check that at most one process is in the critical section of a resource
+     * at any time, that every request is served and that messages share calls.
+     * @return the critical sections in the order they were entered, as resource:process@time
+     */
+    private List<String> simulate(long seed) throws RemoteException{
+        final VirtualScheduler simulator = new VirtualScheduler(seed);
+        final Random random = simulator.getRandom();
+
+        final LockTable[] tables = new LockTable[PROCESS_NUM];
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            tables[i] = new LockTable(PROCESS_NUM, i, simulator);
+            UnicastRemoteObject.unexportObject(tables[i], true);
+        }
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            for(int j = 0; j < PROCESS_NUM; j ++){
+                if(i != j)
+                    tables[i].connect(j, TestNetwork.delayed(simulator, LockTable_RMI.class, tables[j], MAX_DELAY));
+            }
+        }
+
+        // a process requests a resource again only after it released it
+        final boolean[][] busy = new boolean[PROCESS_NUM][RESOURCE_NUM];
+        final int[] accepted = new int[1];
+        for(int k = 0; k < BURST_NUM; k ++){
+            final int process = random.nextInt(PROCESS_NUM);
+            final int first = random.nextInt(RESOURCE_NUM);
+            simulator.schedule(new Runnable() {
+                public void run() {
+                    for(int r = first; r < first + BURST_SIZE; r ++){
+                        int resource = r % RESOURCE_NUM;
+                        if(busy[process][resource])
+                            continue;
+
+                        busy[process][resource] = true;
+                        accepted[0] ++;
+                        tables[process].request(name(resource));
+                    }
+                }
+            }, random.nextInt(DURATION));
+        }
+
+        List<String> sections = new ArrayList<String>();
+        boolean[][] inCS = new boolean[PROCESS_NUM][RESOURCE_NUM];
+        while(simulator.step()){
+            for(int r = 0; r < RESOURCE_NUM; r ++){
+                int count = 0;
+                for(int i = 0; i < PROCESS_NUM; i ++){
+                    boolean in = tables[i].isInCS(name(r));
+                    if(in){
+                        count ++;
+                        if(!inCS[i][r]){
+                            sections.add(r + ":" + i + "@" + simulator.now());
+                            release(simulator, tables, busy, i, r);
+                        }
+                    }
+                    inCS[i][r] = in;
+                }
+                assertTrue("" + count + " processes in the critical section of " + r + " at " + simulator.now(), count <= 1);
+            }
+        }
+
+        int served = 0;
+        long messages = 0;
+        long batches = 0;
+        for(LockTable table: tables){
+            for(int r = 0; r < RESOURCE_NUM; r ++)
+                served += table.getCSCount(name(r));
+            messages += table.getMessageCount();
+            batches += table.getBatchCount();
+        }
+        assertEquals(accepted[0], served);
+        assertTrue(accepted[0] > BURST_NUM);
+        assertTrue(messages + " messages in " + batches + " calls", messages > batches);
+
+        return sections;
+    }
+
+    private static String name(int resource){
+        return "resource-" + resource;
+    }
+
+    /**
+     * Leave a critical section after a random time.
+     */
+    private void release(VirtualScheduler simulator, final LockTable[] tables, final boolean[][] busy,
+                         final int process, final int resource){
+        simulator.schedule(new Runnable() {
+            public void run() {
+                busy[process][resource] = false;
+                tables[process].release(name(resource));
+            }
+        }, 1 + simulator.getRandom().nextInt(MAX_CS_TIME));
+    }
+}
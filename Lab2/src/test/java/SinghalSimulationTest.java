@@ -0,0 +1,166 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.rmi.ConnectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs Singhal's algorithm in virtual time: processes request the critical section at random times
+ * over 30 seconds, every call between processes takes a random delay.
+ */
+public class SinghalSimulationTest {
+
+    private static final int PROCESS_NUM = 5;
+    private static final int REQUEST_NUM = 60;
+    private static final int DURATION = 30000;
+    private static final int MAX_DELAY = 500;
+
+    @Before
+    public void initialize(){
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Test(timeout = 10000)
+    public void testMutualExclusion() throws RemoteException{
+        List<String> run = simulate(1);
+        assertEquals(run, simulate(1));
+    }
+
+    @Test(timeout = 10000)
+    public void testOtherSeed() throws RemoteException{
+        List<String> run = simulate(2);
+        assertEquals(run, simulate(2));
+    }
+
+    /**
+     * P0 holds the idle token and receives the request of P1: it hands the token over and keeps no copy,
+     * so a later request of P0 asks P1 instead of creating a second token.
+     */
+    @Test(timeout = 10000)
+    public void testIdleHolderHandsOverToken(){
+        final List<String> sent = new ArrayList<String>();
+        SinghalCore p0 = new SinghalCore(2, 0, new SinghalCore.Network() {
+            public void sendRequest(int destId, int reqNum) {
+                sent.add("request " + destId);
+            }
+
+            public void sendToken(int destId, Token token) {
+                sent.add("token " + destId);
+            }
+        });
+
+        p0.receiveRequest(1, 1);
+        assertEquals(Arrays.asList("token 1"), sent);
+
+        assertFalse(p0.tryEnter());
+        assertFalse(p0.request());
+        assertEquals(Arrays.asList("token 1", "request 1"), sent);
+    }
+
+    /**
+     * The peer is not reachable for the first calls: the channel repeats the first call after a backoff
+     * in virtual time, and makes the later calls only after it, in the order they were sent.
+     */
+    @Test(timeout = 10000)
+    public void testChannelRetriesInOrder(){
+        VirtualScheduler simulator = new VirtualScheduler(1);
+        final List<String> received = new ArrayList<String>();
+        final int[] failures = {2};
+        PeerChannel<Remote> channel = new PeerChannel<Remote>("test", null, new Remote() {}, simulator);
+        for(int k = 0; k < 3; k ++){
+            final int reqNum = k;
+            channel.send(new PeerChannel.Call<Remote>() {
+                public void invoke(Remote peer) throws RemoteException {
+                    if(failures[0] > 0){
+                        failures[0] --;
+                        throw new ConnectException("not bound yet");
+                    }
+                    received.add("request " + reqNum);
+                }
+            });
+        }
+        assertEquals(3, channel.getQueueSize());
+
+        simulator.run();
+        assertEquals(Arrays.asList("request 0", "request 1", "request 2"), received);
+        assertEquals(0, channel.getQueueSize());
+        assertTrue("the retries did not wait", simulator.now() > 0);
+    }
+
+    /**
+     * Run one scenario and check that at most one process is in the critical section at any time
+     * and that every request is served.
+     * @return the critical sections in the order they were entered, as process@time
+     */
+    private List<String> simulate(long seed) throws RemoteException{
+        final VirtualScheduler simulator = new VirtualScheduler(seed);
+        final Random random = simulator.getRandom();
+
+        final DA_Singhal[] processes = new DA_Singhal[PROCESS_NUM];
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            processes[i] = new DA_Singhal(PROCESS_NUM, i, simulator);
+            UnicastRemoteObject.unexportObject(processes[i], true);
+        }
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            for(int j = 0; j < PROCESS_NUM; j ++){
+                if(i != j)
+                    processes[i].connect(j, TestNetwork.delayed(simulator, DA_Singhal_RMI.class, processes[j], MAX_DELAY));
+            }
+        }
+
+        // a request is only accepted by a process which is not requesting or executing already
+        final int[] accepted = new int[1];
+        for(int k = 0; k < REQUEST_NUM; k ++){
+            final int process = random.nextInt(PROCESS_NUM);
+            simulator.schedule(new Runnable() {
+                public void run() {
+                    State state = processes[process].getState();
+                    if(state != State.O && state != State.H)
+                        return;
+
+                    accepted[0] ++;
+                    try{
+                        processes[process].requestCS();
+                    }catch (RemoteException e){
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }, random.nextInt(DURATION));
+        }
+
+        List<String> sections = new ArrayList<String>();
+        boolean[] inCS = new boolean[PROCESS_NUM];
+        while(simulator.step()){
+            int count = 0;
+            for(int i = 0; i < PROCESS_NUM; i ++){
+                if(processes[i].isInCS()){
+                    count ++;
+                    if(!inCS[i])
+                        sections.add(i + "@" + simulator.now());
+                }
+                inCS[i] = processes[i].isInCS();
+            }
+            assertTrue("" + count + " processes in the critical section at " + simulator.now(), count <= 1);
+        }
+
+        int served = 0;
+        for(DA_Singhal process: processes)
+            served += process.getCSCount();
+        assertEquals(accepted[0], served);
+        assertTrue(accepted[0] > PROCESS_NUM);
+
+        return sections;
+    }
+}
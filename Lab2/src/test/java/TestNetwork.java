@@ -0,0 +1,63 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Connects processes of a test in this JVM without a registry, directly or in virtual time.
+ */
+public class TestNetwork {
+
+    /**
+     * Create processes running in real time, each calling the others directly.
+     * @param processNum Number of processes in the system
+     * @return the processes by index
+     */
+    static DA_Singhal[] connected(int processNum) throws RemoteException{
+        DA_Singhal[] processes = new DA_Singhal[processNum];
+        for(int i = 0; i < processNum; i ++){
+            processes[i] = new DA_Singhal(processNum, i, (VirtualScheduler) null);
+            UnicastRemoteObject.unexportObject(processes[i], true);
+        }
+        for(int i = 0; i < processNum; i ++){
+            for(int j = 0; j < processNum; j ++){
+                if(i != j)
+                    processes[i].connect(j, processes[j]);
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * Stub of a remote object for one link, which runs every call after a random delay of the simulation
+     * but never before an earlier call of the link, as a connection delivers in order. Calls return right
+     * away, so the interface should only have methods returning nothing.
+     * @param type remote interface of the object
+     * @param target the object
+     * @param maxDelay maximal delay of a call, in milliseconds
+     */
+    static <T> T delayed(final VirtualScheduler simulator, Class<T> type, final T target, final int maxDelay){
+        final long[] lastArrival = new long[1];
+
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, final Method method, final Object[] args) {
+                long arrival = Math.max(lastArrival[0], simulator.now() + 1 + simulator.getRandom().nextInt(maxDelay));
+                lastArrival[0] = arrival;
+                simulator.schedule(new Runnable() {
+                    public void run() {
+                        try{
+                            method.invoke(target, args);
+                        }catch (IllegalAccessException e1){
+                            throw new IllegalStateException(e1);
+                        }catch (InvocationTargetException e2){
+                            throw new IllegalStateException(e2.getCause());
+                        }
+                    }
+                }, arrival - simulator.now());
+                return null;
+            }
+        }));
+    }
+}
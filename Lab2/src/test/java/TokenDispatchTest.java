@@ -0,0 +1,110 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs processes in real time in this JVM, calling each other directly, with a thread per process taking
+ * its DistributedLock in turn: every process enters the critical section on the thread owning it, and
+ * records the tokens it received and sent.
+ */
+public class TokenDispatchTest {
+
+    private static final int PROCESS_NUM = 3;
+    private static final int ROUNDS = 5;
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Lock remembering the threads the process granted it on
+     */
+    private static class RecordingLock extends DistributedLock {
+
+        private List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        private RecordingLock(CriticalSection process){
+            super(process);
+        }
+
+        @Override
+        boolean grant(){
+            threads.add(Thread.currentThread().getName());
+            return super.grant();
+        }
+    }
+
+    @Before
+    public void initialize(){
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Test(timeout = 20000)
+    public void testTokensOnOwnerThread() throws Exception{
+        DA_Singhal[] processes = TestNetwork.connected(PROCESS_NUM);
+        RecordingLock[] locks = new RecordingLock[PROCESS_NUM];
+        for(int i = 0; i < PROCESS_NUM; i ++)
+            locks[i] = new RecordingLock(processes[i]);
+
+        final AtomicInteger inCS = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        Thread[] threads = new Thread[PROCESS_NUM];
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            final RecordingLock lock = locks[i];
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for(int k = 0; k < ROUNDS; k ++){
+                        lock.lock();
+                        try{
+                            if(inCS.incrementAndGet() != 1)
+                                violations.incrementAndGet();
+                            Thread.sleep(1);
+                            inCS.decrementAndGet();
+                        }catch (InterruptedException e){
+                            return;
+                        }finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            }, "application-" + i);
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join(TIMEOUT);
+
+        assertEquals(0, violations.get());
+        long received = 0;
+        for(int i = 0; i < PROCESS_NUM; i ++){
+            assertEquals(ROUNDS, processes[i].getCSCount());
+            assertEquals(ROUNDS, locks[i].threads.size());
+            for(String thread: locks[i].threads)
+                assertEquals("Singhal-" + i, thread);
+
+            SinghalMetrics metrics = processes[i].getMetrics();
+            assertEquals(ROUNDS, metrics.getLockCount());
+            assertEquals(1, metrics.getDispatchThreadsMax());
+            received += metrics.getTokenCount();
+        }
+        assertTrue("no token was passed on", received > 0);
+
+        // a sender records the token once the call returned, which might be after the receiver processed it
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        long sent = 0;
+        while(System.currentTimeMillis() < deadline){
+            sent = 0;
+            for(DA_Singhal process: processes)
+                sent += process.getMetrics().getSendCount();
+            if(sent == received)
+                break;
+            Thread.sleep(10);
+        }
+        assertEquals(received, sent);
+    }
+}
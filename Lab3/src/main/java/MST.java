@@ -3,6 +3,9 @@ import org.apache.log4j.Logger;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Map of data structure from pseudo code to it
@@ -62,11 +65,14 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      */
     private int find_count;
 
-    private boolean halt;
+    private volatile boolean halt;
 
     private boolean isTest;
 
-    private int received, delieved;
+    /**
+     * Runs the received messages one at a time, in the order they arrived
+     */
+    private Executor executor;
 
 
 /////for statistic only
@@ -84,11 +90,77 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
 
     private LinkedList<Message> queue;
 
+    /**
+     * Optional binary trace of the messages handled, null if disabled
+     */
+    private TraceRecorder trace;
+
+    /**
+     * State of the node recorded with every traced event, reused by the thread running the messages
+     */
+    private int[] traceState = new int[6];
+
+    private static final int TRACE_INITIATE = 0;
+    private static final int TRACE_TEST = 1;
+    private static final int TRACE_ACCEPT = 2;
+    private static final int TRACE_REJECT = 3;
+    private static final int TRACE_REPORT = 4;
+    private static final int TRACE_CONNECT = 5;
+    private static final int TRACE_CHANGE_ROOT = 6;
+    private static final int TRACE_POSTPONE_TEST = 7;
+    private static final int TRACE_POSTPONE_REPORT = 8;
+    private static final int TRACE_POSTPONE_CONNECT = 9;
+    private static final int TRACE_SEND_TEST = 10;
+    private static final int TRACE_SEND_ACCEPT = 11;
+    private static final int TRACE_SEND_REPORT = 12;
+    private static final int TRACE_NO_MOE = 13;
+    private static final int TRACE_BEST_EDGE = 14;
+
+    /**
+     * Labels of the traced events. The state of the node recorded with them is
+     * LN, FN, SN (Sleeping 0, Find 1, Found 2), find_count, test_edge and best_weight.
+     */
+    static final String[][] TRACE_TYPES = {
+            {"INITIATE", "from", "level", "fragment", "state", "node"},
+            {"TEST", "from", "level", "fragment", null, "node"},
+            {"ACCEPT", "from", null, null, null, "node"},
+            {"REJECT", "from", null, null, null, "node"},
+            {"REPORT", "from", "weight", null, null, "node"},
+            {"CONNECT", "from", "level", null, null, "node"},
+            {"CHANGE_ROOT", null, null, null, null, "node"},
+            {"POSTPONE_TEST", "from", null, null, null, "node"},
+            {"POSTPONE_REPORT", "from", null, null, null, "node"},
+            {"POSTPONE_CONNECT", "from", null, null, null, "node"},
+            {"SEND_TEST", "to", null, null, null, "node"},
+            {"SEND_ACCEPT", "to", null, null, null, "node"},
+            {"SEND_REPORT", "to", "weight", null, null, "node"},
+            {"NO_MOE", null, null, null, null, "node"},
+            {"BEST_EDGE", "to", "weight", null, null, "node"}
+    };
+
     final static Logger logger = Logger.getLogger(MST.class);
 
-    public MST(int processNum, int index)throws RemoteException {
+    public MST(final int processNum, final int index)throws RemoteException {
+        this(processNum, index, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MST-" + index);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Constructor
+     * @param processNum Number of processes in the system
+     * @param index Index of the process
+     * @param executor runs the received messages, it must run them one at a time in the order
+     *                 they were submitted, e.g. a single thread or a VirtualScheduler
+     */
+    public MST(int processNum, int index, Executor executor)throws RemoteException {
         this.processNum = processNum;
         this.index = index;
+        this.executor = executor;
         reset();
     }
 
@@ -103,8 +175,6 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
         test_edge = NIL;
         best_weight = INF;
         isTest = false;
-        received = 0;
-        delieved = 0;
 
         best_edge = 0;
         in_branch = 0;
@@ -140,62 +210,37 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
         return new ReturnMessage(in_branch, SE.get(in_branch).getWeight(), messageCount, merge, absorb, LN, core);
     }
 
-    private class Receive extends Thread{
-        private Message message;
+    public void receive_message(final Message msg) throws RemoteException{
+        messageCount.put(msg.getType(),messageCount.get(msg.getType())+1);
 
-        public Receive(Message msg){
-            super();
-            synchronized(this){
-                message = msg;
-                message.setSequence(received);
-                received ++;
+        executor.execute(new Runnable() {
+            public void run() {
+                deliver(msg);
             }
-        }
-
-        @Override
-        public void run(){
-
-            try{
-                while(message.getSequence() != delieved){
-                    Thread.sleep(100);
-                }
-                switch (message.getType()){
-                    case INITIATE:  deliver_initiate(message.getSrc(),message.getLevel(),message.getFragment(),message.getState());break;
-                    case TEST:      deliver_test(message.getSrc(), message.getLevel(),message.getFragment());break;
-                    case ACCEPT:    deliver_accept(message.getSrc());break;
-                    case REJECT:    deliver_reject(message.getSrc());break;
-                    case REPORT:    deliver_report(message.getSrc(),message.getWeight());break;
-                    case CONNECT:   deliver_connect(message.getSrc(),message.getLevel());break;
-                    case CHANGE_ROOT: deliver_change_root();break;
-
-                }
-
-                //after processing the message  plus it
-                handleQueue();
-
-                delieved ++;
+        });
+    }
 
+    private void deliver(Message message){
+        try{
+            switch (message.getType()){
+                case INITIATE:  deliver_initiate(message.getSrc(),message.getLevel(),message.getFragment(),message.getState());break;
+                case TEST:      deliver_test(message.getSrc(), message.getLevel(),message.getFragment());break;
+                case ACCEPT:    deliver_accept(message.getSrc());break;
+                case REJECT:    deliver_reject(message.getSrc());break;
+                case REPORT:    deliver_report(message.getSrc(),message.getWeight());break;
+                case CONNECT:   deliver_connect(message.getSrc(),message.getLevel());break;
+                case CHANGE_ROOT: deliver_change_root();break;
 
-            }catch(InterruptedException e){
-                logger.error(e.getMessage());
-            }catch(RemoteException e){
-                logger.error(e.getMessage());
             }
 
+            //after processing the message
+            handleQueue();
+        }catch(RemoteException e){
+            logger.error(e.getMessage());
         }
     }
 
 
-    public void receive_message(Message msg) throws RemoteException{
-        logger.info("Receive a message " + msg.getType() + " from P" + msg.getSrc());
-
-        messageCount.put(msg.getType(),messageCount.get(msg.getType())+1);
-
-        Receive receive = new Receive(msg);
-        receive.start();
-    }
-
-
     /**
      * /unction to inform this node the index of neighbouring node, and the weight of the edge to
      *  this node, thus we can construct a graph, should ONLY be invoked by the test function
@@ -215,8 +260,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      */
     public void deliver_initiate(int src, int level, int fragment_name, State_node s) throws RemoteException{
 
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "P" + src + " Initiate Msg: level = " + level + " frag = " + fragment_name + " state = " + s);
+        trace(TRACE_INITIATE, src, level, fragment_name, s.ordinal());
         LN = level;
         FN = fragment_name;
         SN = s;
@@ -263,8 +307,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
         // if such neighbour node is founded, send test message
         // if no, means all neighbours have been tested, report the best edge right now
         if(minNeigh != -1){
-            logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                    "Test: Send Test Msg to P" + minNeigh);
+            trace(TRACE_SEND_TEST, minNeigh, 0, 0, 0);
             test_edge = minNeigh;
 
             Message msg = new Message(MessageType.TEST,index);
@@ -273,8 +316,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
             SE.get(minNeigh).getNode().receive_message(msg);
         }
         else{
-            logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                    "Test: no MOE");
+            trace(TRACE_NO_MOE, 0, 0, 0, 0);
             test_edge = NIL;
             report();
         }
@@ -289,8 +331,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      */
     public boolean deliver_test(int src, int level, int fragment_name) throws RemoteException{
         boolean isDeliverd = true;
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "Receive P" + src + " Test Msg: level = " + level + " frag = " + fragment_name);
+        trace(TRACE_TEST, src, level, fragment_name, 0);
 
         if(SN == State_node.Sleeping){
             wakeup();
@@ -302,15 +343,11 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
             msg.setLevel(level);
             msg.setFragment(fragment_name);
             queue.add(msg);
-
-            logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                    "P" + src + " Test Msg is postponed.");
+            trace(TRACE_POSTPONE_TEST, src, 0, 0, 0);
         }else{ // absorb
             // absorb subtree which is not in same fragment
             if(fragment_name != FN){
-                logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                        "P" + src + " Test Msg is accepted.");
-
+                trace(TRACE_SEND_ACCEPT, src, 0, 0, 0);
                 Message msg = new Message(MessageType.ACCEPT,index);
                 SE.get(src).getNode().receive_message(msg);
             }
@@ -336,22 +373,19 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      * If receive an accept, absorbs a subtree.
      */
     public void deliver_accept(int src) throws RemoteException{
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "Receive P" + src + " Accept Msg");
+        trace(TRACE_ACCEPT, src, 0, 0, 0);
         test_edge = NIL;
         int propose = SE.get(src).getWeight();
         if( propose < best_weight){
             best_edge = src;
             best_weight = propose;
-            logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                    " bestW = " + best_weight + " bestE = " + best_edge);
+            trace(TRACE_BEST_EDGE, best_edge, best_weight, 0, 0);
         }
         report();
     }
 
     public void deliver_reject(int src) throws RemoteException{
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "Receive P" + src + " Reject Msg");
+        trace(TRACE_REJECT, src, 0, 0, 0);
         if(SE.get(src).getSE() == State_edge.P_in_MST)
             SE.get(src).setSE(State_edge.Not_in_MST);
 
@@ -369,8 +403,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      * @throws RemoteException
      */
     public boolean deliver_report (int src, int weight) throws RemoteException{
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "Receive P" + src + "Report Msg with weight = " + weight + "bestW = " + best_weight);
+        trace(TRACE_REPORT, src, weight, 0, 0);
 
         boolean isDeliverd = true;
         if(src != this.in_branch){
@@ -385,6 +418,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
             Message msg = new Message(MessageType.REPORT,src);
             msg.setWeight(weight);
             queue.add(msg);
+            trace(TRACE_POSTPONE_REPORT, src, 0, 0, 0);
             isDeliverd = false;
         }else{
             // receive report from the other side of core edge
@@ -404,8 +438,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      * @throws RemoteException
      */
     public void deliver_change_root() throws RemoteException{
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "Receive Change Root Msg");
+        trace(TRACE_CHANGE_ROOT, 0, 0, 0, 0);
         change_root();
     }
 
@@ -433,8 +466,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      */
     public boolean deliver_connect(int src, int level) throws RemoteException{
         boolean isDelivered = true;
-        logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                "Receive P" + src + " Connect Msg with level = " + level);
+        trace(TRACE_CONNECT, src, level, 0, 0);
 
         if(this.SN == State_node.Sleeping){
             wakeup();
@@ -460,6 +492,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
                 Message msg = new Message(MessageType.CONNECT, src);
                 msg.setLevel(level);
                 queue.add(msg);
+                trace(TRACE_POSTPONE_CONNECT, src, 0, 0, 0);
             }else{
                 Message msg = new Message(MessageType.INITIATE,index);
                 msg.setLevel(LN+1);
@@ -506,8 +539,7 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
      */
     private void report() throws RemoteException{
         if(this.find_count == 0 && this.test_edge == NIL){
-            logger.info("< " + LN + ", " + FN + ", " + SN + ", " + find_count + ", " + test_edge + " > " +
-                    "Send Report to P" + in_branch + " bestW = " + best_weight);
+            trace(TRACE_SEND_REPORT, in_branch, best_weight, 0, 0);
             this.SN =  State_node.Found;
 
             Message msg = new Message(MessageType.REPORT,index);
@@ -565,21 +597,18 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
             switch(msg.getType()){
                 case CONNECT:{
                     if(deliver_connect(msg.getSrc(), msg.getLevel())) {
-                        logger.info("Handle Queue Connect msg from P" + msg.getSrc());
                         handleQueue();
                     }
                     break;
                 }
                 case TEST: {
                     if(deliver_test(msg.getSrc(), msg.getLevel(), msg.getFragment())){
-                        logger.info("Handle Queue Test msg from P" + msg.getSrc());
                         handleQueue();
                     }
                     break;
                 }
                 case REPORT: {
                     if(deliver_report(msg.getSrc(), msg.getWeight())){
-                        logger.info("Handle Queue Report msg from P" + msg.getSrc());
                         handleQueue();
                     }
                     break;
@@ -588,6 +617,22 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
         }
     }
 
+    /**
+     * Record an event with the state of the node in the trace, if it is enabled.
+     */
+    private void trace(int type, int peer, int a, int b, int c){
+        if(trace == null)
+            return;
+
+        traceState[0] = LN;
+        traceState[1] = FN;
+        traceState[2] = SN.ordinal();
+        traceState[3] = find_count;
+        traceState[4] = test_edge;
+        traceState[5] = best_weight;
+        trace.record(type, peer, a, b, c, traceState, traceState.length);
+    }
+
     private void halt() throws RemoteException{
         core = true;
         receive_print(index);
@@ -598,5 +643,29 @@ public class MST extends UnicastRemoteObject implements MST_RMI, Runnable{
         return in_branch;
     }
 
+    /**
+     * Record the messages handled by this node in a binary trace, printed by TraceDecoder.
+     * @param trace the trace, null to disable it
+     */
+    public void setTrace(TraceRecorder trace){
+        this.trace = trace;
+    }
+
+    boolean isHalted(){
+        return halt;
+    }
+
+    /**
+     * @return indices of the neighbours on the other side of the edges in the MST
+     */
+    Set<Integer> getBranches(){
+        Set<Integer> branches = new TreeSet<Integer>();
+        for (Map.Entry<Integer, NeighbourNode> iter : SE.entrySet()){
+            if(iter.getValue().getSE() == State_edge.In_MST)
+                branches.add(iter.getKey());
+        }
+        return branches;
+    }
+
 
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -15,6 +16,16 @@ public class ProcessManager {
     private static String prefix = "rmi://";
 
     public static String[] readConfiguration(){
+        String[] urls = loadConfiguration().getStringArray("node_url");
+        logger.info("read url : " +  urls[0]);
+        return urls;
+    }
+
+    /**
+     * Read url.properties
+     * @return all settings, empty if the file could not be read
+     */
+    public static PropertiesConfiguration loadConfiguration(){
         // initialize node property
         PropertiesConfiguration config = new PropertiesConfiguration();
         try{
@@ -27,21 +38,26 @@ public class ProcessManager {
             e2.printStackTrace();
         }
 
-
-        String[] urls = config.getStringArray("node_url");
-        logger.info("read url : " +  urls[0]);
-        return urls;
+        return config;
     }
 
     /**
      *
      */
     public static void startServer(int index) {
-        String[] urls = readConfiguration();
+        PropertiesConfiguration config = loadConfiguration();
+        String[] urls = config.getStringArray("node_url");
 
         try {
             MST process = new MST(urls.length, index);
             logger.info("create server at" + urls[index]);
+
+            String traceDir = config.getString("trace_dir", null);
+            if(traceDir != null){
+                process.setTrace(new TraceRecorder(traceDir + File.separator + "trace-" + index + ".bin", index,
+                        MST.TRACE_TYPES, config.getInt("trace_buffer", 1 << 16)));
+            }
+
             new Thread(process).start();
             Naming.bind("rmi://localhost/SES", process);
 
@@ -51,6 +67,9 @@ public class ProcessManager {
             e2.printStackTrace();
         } catch (MalformedURLException e3) {
             e3.printStackTrace();
+        } catch (IOException e4) {
+            logger.error("Failed to open the trace of process " + index);
+            e4.printStackTrace();
         }
     }
 }
\ No newline at end of file
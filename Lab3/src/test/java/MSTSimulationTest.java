@@ -0,0 +1,196 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the GHS algorithm in virtual time on a complete graph with random distinct weights.
+ * Every link delivers its messages in order after random delays, the nodes wake up at random times.
+ */
+public class MSTSimulationTest {
+
+    private static final int NODE_NUM = 12;
+    private static final int DURATION = 30000;
+    private static final int MAX_DELAY = 1000;
+
+    @Before
+    public void initialize(){
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Test(timeout = 10000)
+    public void testMST() throws RemoteException{
+        List<String> run = simulate(1);
+        assertEquals(run, simulate(1));
+    }
+
+    @Test(timeout = 10000)
+    public void testOtherSeed() throws RemoteException{
+        List<String> run = simulate(2);
+        assertEquals(run, simulate(2));
+    }
+
+    /**
+     * Run one scenario and compare the edges found with the MST computed by Kruskal's algorithm.
+     * @return the parent of every node and the time the construction finished
+     */
+    private List<String> simulate(long seed) throws RemoteException{
+        final VirtualScheduler simulator = new VirtualScheduler(seed);
+        Random random = simulator.getRandom();
+
+        final MST[] nodes = new MST[NODE_NUM];
+        for(int i = 0; i < NODE_NUM; i ++){
+            nodes[i] = new MST(NODE_NUM, i, simulator);
+            UnicastRemoteObject.unexportObject(nodes[i], true);
+        }
+
+        List<Integer> weights = new ArrayList<Integer>();
+        for(int i = 0; i < NODE_NUM * (NODE_NUM - 1) / 2; i ++)
+            weights.add(i + NODE_NUM);
+        Collections.shuffle(weights, random);
+
+        int[][] weight = new int[NODE_NUM][NODE_NUM];
+        List<Map<Integer, NeighbourNode>> neighbours = new ArrayList<Map<Integer, NeighbourNode>>();
+        for(int i = 0; i < NODE_NUM; i ++)
+            neighbours.add(new HashMap<Integer, NeighbourNode>());
+
+        int select = 0;
+        for(int i = 0; i < NODE_NUM; i ++){
+            for(int j = i + 1; j < NODE_NUM; j ++){
+                weight[i][j] = weight[j][i] = weights.get(select ++);
+                neighbours.get(i).put(j, neighbour(j, weight[i][j], link(simulator, nodes[j])));
+                neighbours.get(j).put(i, neighbour(i, weight[i][j], link(simulator, nodes[i])));
+            }
+        }
+
+        for(int i = 0; i < NODE_NUM; i ++){
+            nodes[i].construct_key(neighbours.get(i));
+
+            final MST node = nodes[i];
+            simulator.schedule(new Runnable() {
+                public void run() {
+                    try{
+                        node.start();
+                    }catch (RemoteException e){
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }, random.nextInt(DURATION));
+        }
+
+        simulator.run();
+
+        Set<String> expected = kruskal(weight);
+        Set<String> edges = new TreeSet<String>();
+        List<String> result = new ArrayList<String>();
+        for(int i = 0; i < NODE_NUM; i ++){
+            assertTrue("P" + i + " did not halt", nodes[i].isHalted());
+            for(int j: nodes[i].getBranches()){
+                assertTrue("P" + j + " does not know edge " + i + "-" + j, nodes[j].getBranches().contains(i));
+                edges.add(Math.min(i, j) + "-" + Math.max(i, j));
+            }
+            result.add(i + "->" + nodes[i].getIn_branch());
+        }
+        assertEquals(expected, edges);
+
+        result.add("finished at " + simulator.now());
+        return result;
+    }
+
+    private NeighbourNode neighbour(int index, int weight, MST_RMI node){
+        NeighbourNode neighbour = new NeighbourNode();
+        neighbour.setIndex(index);
+        neighbour.setWeight(weight);
+        neighbour.setSE(State_edge.P_in_MST);
+        neighbour.setNode(node);
+        return neighbour;
+    }
+
+    /**
+     * Stub of a node for one link. Calls without a result run after a random delay of the simulation,
+     * but never before an earlier call of the same link: GHS needs FIFO links. Queries run right away.
+     */
+    private MST_RMI link(final VirtualScheduler simulator, final MST node){
+        final long[] lastArrival = new long[1];
+
+        return (MST_RMI) Proxy.newProxyInstance(MST_RMI.class.getClassLoader(),
+                new Class<?>[]{MST_RMI.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if(method.getReturnType() != void.class)
+                            return call(method, node, args);
+
+                        long arrival = Math.max(lastArrival[0], simulator.now() + 1 + simulator.getRandom().nextInt(MAX_DELAY));
+                        lastArrival[0] = arrival;
+                        simulator.schedule(new Runnable() {
+                            public void run() {
+                                call(method, node, args);
+                            }
+                        }, arrival - simulator.now());
+                        return null;
+                    }
+                });
+    }
+
+    private Object call(Method method, MST node, Object[] args){
+        try{
+            return method.invoke(node, args);
+        }catch (IllegalAccessException e1){
+            throw new IllegalStateException(e1);
+        }catch (InvocationTargetException e2){
+            throw new IllegalStateException(e2.getCause());
+        }
+    }
+
+    /**
+     * @return the edges of the minimum spanning tree of a complete graph, as i-j with i < j
+     */
+    private Set<String> kruskal(final int[][] weight){
+        List<int[]> edges = new ArrayList<int[]>();
+        for(int i = 0; i < NODE_NUM; i ++){
+            for(int j = i + 1; j < NODE_NUM; j ++)
+                edges.add(new int[]{i, j});
+        }
+        Collections.sort(edges, new Comparator<int[]>() {
+            public int compare(int[] e1, int[] e2) {
+                return Integer.compare(weight[e1[0]][e1[1]], weight[e2[0]][e2[1]]);
+            }
+        });
+
+        int[] component = new int[NODE_NUM];
+        for(int i = 0; i < NODE_NUM; i ++)
+            component[i] = i;
+
+        Set<String> tree = new TreeSet<String>();
+        for(int[] edge: edges){
+            int c1 = component[edge[0]], c2 = component[edge[1]];
+            if(c1 == c2)
+                continue;
+
+            tree.add(edge[0] + "-" + edge[1]);
+            for(int i = 0; i < NODE_NUM; i ++){
+                if(component[i] == c2)
+                    component[i] = c1;
+            }
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Values below 64 are counted exactly. Above, every power of two is split into 32 buckets,
+ * so a percentile is reported with a relative error of at most about 3%.
+ * The buckets are only allocated for the first value, so an empty histogram stays small. Recording is
+ * lock-free and does not allocate after that; any number of threads may record and read.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Count per bucket, null until the first value is recorded
+     */
+    private volatile AtomicLongArray counts;
+
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    public void record(long value){
+        if(value < 0)
+            value = 0;
+
+        AtomicLongArray buckets = counts;
+        if(buckets == null)
+            buckets = allocate();
+
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while(value > (current = max.get()) && !max.compareAndSet(current, value));
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile){
+        long total = count.get();
+        AtomicLongArray buckets = counts;
+        if(total == 0 || buckets == null)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i ++){
+            seen += buckets.get(i);
+            if(seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount(){
+        return count.get();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    public double getMean(){
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    public void reset(){
+        AtomicLongArray buckets = counts;
+        for(int i = 0; buckets != null && i < BUCKETS; i ++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private synchronized AtomicLongArray allocate(){
+        if(counts == null)
+            counts = new AtomicLongArray(BUCKETS);
+        return counts;
+    }
+
+    private static int bucket(long value){
+        if(value < LINEAR)
+            return (int) value;
+
+        // shift so that the value keeps its SUB_BUCKET_BITS + 1 most significant bits
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int bucket){
+        if(bucket < LINEAR)
+            return bucket;
+
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString(){
+        return "count " + getCount() + " p50 " + getPercentile(50) + " p99 " + getPercentile(99) +
+                " p99.9 " + getPercentile(99.9) + " max " + getMax();
+    }
+}
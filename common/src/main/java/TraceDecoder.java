@@ -0,0 +1,187 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.PriorityQueue;
+
+/**
+ * Reader of a trace file written by TraceRecorder, one record at a time.
+ *
+ * Run as a program, it prints the records of one or more trace files as text, merged by time:
+ * java TraceDecoder trace/trace-0.bin trace/trace-1.bin ...
+ * Records of processes in different JVMs are merged by their wall clock time, so their order is only
+ * as accurate as the clocks of the machines.
+ */
+public class TraceDecoder {
+
+    private DataInputStream in;
+
+    private int process;
+
+    /**
+     * Wall clock time of the start of the trace in milliseconds
+     */
+    private long startMillis;
+
+    /**
+     * Per type its name and the labels of peer, a, b, c and the values
+     */
+    private String[][] types;
+
+    private int type;
+    private long time;
+    private int peer, a, b, c;
+    private int[] values = new int[0];
+    private int count;
+
+    /**
+     * Open a trace file and read its header.
+     * @param path path of the trace file
+     * @throws IOException if the file is not a trace
+     */
+    public TraceDecoder(String path) throws IOException{
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+        if(in.readInt() != TraceRecorder.MAGIC || in.readInt() != TraceRecorder.VERSION){
+            in.close();
+            throw new IOException(path + " is not a trace of version " + TraceRecorder.VERSION);
+        }
+
+        process = in.readInt();
+        startMillis = in.readLong();
+        types = new String[in.readInt()][6];
+        for(String[] labels: types){
+            for(int i = 0; i < labels.length; i ++)
+                labels[i] = in.readUTF();
+        }
+    }
+
+    /**
+     * Read the next record.
+     * @return false at the end of the trace, or at a record cut off by a crash
+     */
+    public boolean next() throws IOException{
+        try{
+            long header = in.readLong();
+            time = in.readLong();
+            long slot = in.readLong();
+            peer = (int) (slot >> 32);
+            a = (int) slot;
+            slot = in.readLong();
+            b = (int) (slot >> 32);
+            c = (int) slot;
+
+            type = (int) header;
+            count = (int) (header >>> 32);
+            if(values.length < count + 1)
+                values = new int[count + 1];
+            for(int i = 0; i < count; i += 2){
+                slot = in.readLong();
+                values[i] = (int) (slot >> 32);
+                values[i + 1] = (int) slot;
+            }
+            return true;
+        }catch (EOFException e){
+            return false;
+        }
+    }
+
+    public int getProcess(){
+        return process;
+    }
+
+    public String getTypeName(){
+        return types[type][0];
+    }
+
+    /**
+     * @return wall clock time of the record in nanoseconds since the epoch
+     */
+    public long getTime(){
+        return startMillis * 1000000 + time;
+    }
+
+    public int getPeer(){
+        return peer;
+    }
+
+    public int getA(){
+        return a;
+    }
+
+    public int getB(){
+        return b;
+    }
+
+    public int getC(){
+        return c;
+    }
+
+    /**
+     * @return the values of the record
+     */
+    public int[] getValues(){
+        return Arrays.copyOf(values, count);
+    }
+
+    public void close() throws IOException{
+        in.close();
+    }
+
+    /**
+     * @return the current record as text, without its time
+     */
+    @Override
+    public String toString(){
+        String[] labels = types[type];
+        StringBuilder builder = new StringBuilder();
+        builder.append('P').append(process).append(' ').append(labels[0]);
+        if(!labels[1].isEmpty())
+            builder.append(' ').append(labels[1]).append("=P").append(peer);
+        int[] fields = {a, b, c};
+        for(int i = 0; i < fields.length; i ++){
+            if(!labels[2 + i].isEmpty())
+                builder.append(' ').append(labels[2 + i]).append('=').append(fields[i]);
+        }
+        if(!labels[5].isEmpty())
+            builder.append(' ').append(labels[5]).append('=').append(Arrays.toString(getValues()));
+        return builder.toString();
+    }
+
+    /**
+     * Print trace files as text, merged by time.
+     * @param args paths of the trace files
+     */
+    public static void main(String args[]) throws IOException{
+        PriorityQueue<TraceDecoder> traces = new PriorityQueue<TraceDecoder>(Math.max(1, args.length),
+                new Comparator<TraceDecoder>() {
+                    public int compare(TraceDecoder t1, TraceDecoder t2) {
+                        return Long.compare(t1.getTime(), t2.getTime());
+                    }
+                });
+        for(String path: args){
+            TraceDecoder trace = new TraceDecoder(path);
+            if(trace.next())
+                traces.add(trace);
+            else
+                trace.close();
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        TraceDecoder trace;
+        while((trace = traces.poll()) != null){
+            long time = trace.getTime();
+            System.out.println(format.format(new Date(time / 1000000)) +
+                    String.format("%03d", time / 1000 % 1000) + " " + trace);
+
+            if(trace.next())
+                traces.add(trace);
+            else
+                trace.close();
+        }
+    }
+}
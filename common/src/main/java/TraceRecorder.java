@@ -0,0 +1,339 @@
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary trace of the events of a process, replacing log lines built from whole clocks on the hot path.
+ *
+ * An event is a type, a peer process, three ints and optionally an array of ints, e.g. a clock.
+ * It is copied into a ring of longs without locks or allocation, and a background thread appends
+ * the ring to a file. One writer thread serves all traces of the JVM, and one shutdown hook closes them,
+ * so thousands of processes in one JVM do not start a thread each. If the writer falls behind and the
+ * ring is full, events are dropped and the number of dropped events is written in their place, the
+ * process never waits for the trace.
+ * TraceDecoder prints trace files as text.
+ *
+ * File: magic, version, process index, wall clock time of the start in milliseconds, number of event
+ * types, then per type its name and the labels of peer, a, b, c and the values ("" if not used).
+ * Record: count of values << 32 | type, nanoseconds since the start, peer << 32 | a, b << 32 | c,
+ * then the values, two per long.
+ */
+public class TraceRecorder {
+
+    final static Logger logger = Logger.getLogger(TraceRecorder.class);
+
+    public static final int MAGIC = 0x54524345;
+    public static final int VERSION = 1;
+
+    /**
+     * Type of the record written in place of dropped events, the types of the user follow it
+     */
+    public static final String[] DROPPED = {"DROPPED", "", "events", "", "", ""};
+
+    private static final long PUBLISHED = 1L << 63;
+    private static final long MASK = 0xffffffffL;
+
+    /**
+     * Open traces of this JVM, served by the writer in turn
+     */
+    private static final List<TraceRecorder> recorders = new CopyOnWriteArrayList<TraceRecorder>();
+
+    /**
+     * Thread writing all traces, started with the first trace
+     */
+    private static volatile Thread writer;
+
+    /**
+     * Records in the ring, a slot is 0 unless it holds a record not written to the file yet.
+     */
+    private AtomicLongArray ring;
+    private int capacity;
+
+    /**
+     * Position of the end of the last claimed record
+     */
+    private AtomicLong head = new AtomicLong();
+
+    /**
+     * Position of the first record not written yet, only advanced by the writer
+     */
+    private AtomicLong tail = new AtomicLong();
+
+    private AtomicLong dropped = new AtomicLong();
+
+    private long startNanos;
+
+    private int process;
+    private DataOutputStream out;
+    private volatile boolean running;
+
+    /**
+     * Number of dropped events written to the file, owned by the writer
+     */
+    private long reported;
+
+    /**
+     * Whether records were written since the last flush, owned by the writer
+     */
+    private boolean dirty;
+
+    /**
+     * Released by the writer once the file is closed
+     */
+    private CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * Constructor, starts writing the trace to a file.
+     * @param path path of the trace file, replaced if it exists
+     * @param process index of the process
+     * @param types per event type its name and the labels of peer, a, b, c and the values, null if not used
+     * @param capacity number of longs in the ring, rounded up to a power of 2
+     * @throws IOException
+     */
+    public TraceRecorder(String path, int process, String[][] types, int capacity) throws IOException{
+        this.process = process;
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        ring = new AtomicLongArray(this.capacity);
+
+        File file = new File(path);
+        if(file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16 * 1024));
+
+        startNanos = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(process);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(types.length + 1);
+        writeType(DROPPED);
+        for(String[] type: types)
+            writeType(type);
+
+        running = true;
+        start(this);
+    }
+
+    /**
+     * Hand a trace to the writer, starting the writer and the shutdown hook with the first trace.
+     */
+    private static synchronized void start(TraceRecorder recorder){
+        recorders.add(recorder);
+        if(writer != null)
+            return;
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                for(TraceRecorder recorder: recorders)
+                    recorder.close();
+            }
+        }));
+    }
+
+    /**
+     * Record an event.
+     * @param type index of the type in the types of the constructor
+     */
+    public void record(int type, int peer, int a, int b, int c){
+        record(type, peer, a, b, c, null, 0);
+    }
+
+    /**
+     * Record an event with values.
+     * @param type index of the type in the types of the constructor
+     * @param values values, not copied nor kept after the call
+     * @param count number of values to record
+     */
+    public void record(int type, int peer, int a, int b, int c, int[] values, int count){
+        long time = System.nanoTime() - startNanos;
+        int length = 4 + (count + 1) / 2;
+
+        long position;
+        do{
+            position = head.get();
+            if(position + length - tail.get() > capacity){
+                dropped.incrementAndGet();
+                return;
+            }
+        }while(!head.compareAndSet(position, position + length));
+
+        ring.lazySet(slot(position + 1), time);
+        ring.lazySet(slot(position + 2), ((long) peer << 32) | (a & MASK));
+        ring.lazySet(slot(position + 3), ((long) b << 32) | (c & MASK));
+        for(int i = 0; i < count; i += 2){
+            long low = i + 1 < count ? values[i + 1] & MASK : 0;
+            ring.lazySet(slot(position + 4 + i / 2), ((long) values[i] << 32) | low);
+        }
+
+        // the header is written last, the writer takes the record once it sees the header
+        ring.lazySet(slot(position), PUBLISHED | ((long) count << 32) | (type + 1));
+    }
+
+    /**
+     * @return number of events dropped because the ring was full
+     */
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Write the remaining events and close the file.
+     */
+    public synchronized void close(){
+        if(!running)
+            return;
+
+        running = false;
+        LockSupport.unpark(writer);
+        try{
+            closed.await();
+        }catch (InterruptedException e){
+            e.printStackTrace();
+        }
+
+        if(dropped.get() > 0)
+            logger.warn("Trace of process " + process + " dropped " + dropped.get() + " events");
+    }
+
+    /**
+     * Write the published records of all traces in turn, flushing them once none has new records.
+     */
+    private static void write(){
+        while(true){
+            boolean written = false;
+            for(TraceRecorder recorder: recorders)
+                written |= recorder.writeRound();
+
+            if(!written){
+                for(TraceRecorder recorder: recorders)
+                    recorder.flush();
+                LockSupport.parkNanos(1000000);
+            }
+        }
+    }
+
+    /**
+     * Write the records published since the last round, or the rest of the trace and close it once it is closed.
+     * @return true if records were written
+     */
+    private boolean writeRound(){
+        try{
+            if(!running){
+                drain();
+                writeReported();
+                out.close();
+                finish();
+                return false;
+            }
+
+            writeReported();
+            boolean written = drain();
+            dirty |= written;
+            return written;
+        }catch (IOException e){
+            logger.error("Failed to write trace of process " + process);
+            e.printStackTrace();
+            finish();
+            return false;
+        }
+    }
+
+    private void flush(){
+        if(!dirty)
+            return;
+
+        try{
+            out.flush();
+            dirty = false;
+        }catch (IOException e){
+            logger.error("Failed to write trace of process " + process);
+            e.printStackTrace();
+            finish();
+        }
+    }
+
+    /**
+     * Stop writing this trace and release the thread closing it.
+     */
+    private void finish(){
+        running = false;
+        recorders.remove(this);
+        closed.countDown();
+    }
+
+    /**
+     * Write the number of events dropped since the last round.
+     */
+    private void writeReported() throws IOException{
+        long total = dropped.get();
+        if(total > reported){
+            writeDropped((int) Math.min(Integer.MAX_VALUE, total - reported));
+            reported = total;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write all published records to the file.
+     * @return false if there was none
+     */
+    private boolean drain() throws IOException{
+        long position = tail.get();
+        long start = position;
+
+        while(true){
+            long header = ring.get(slot(position));
+            if((header & PUBLISHED) == 0)
+                break;
+
+            int count = (int) ((header >>> 32) & 0x7fffffff);
+            int length = 4 + (count + 1) / 2;
+            out.writeLong(header & ~PUBLISHED);
+            for(int i = 1; i < length; i ++)
+                out.writeLong(ring.get(slot(position + i)));
+
+            // clear the slots, a header may later be written where values were
+            for(int i = 0; i < length; i ++)
+                ring.lazySet(slot(position + i), 0);
+
+            position += length;
+            tail.lazySet(position);
+        }
+
+        return position != start;
+    }
+
+    private void writeDropped(int count) throws IOException{
+        out.writeLong(0);
+        out.writeLong(System.nanoTime() - startNanos);
+        out.writeLong(((long) -1 << 32) | (count & MASK));
+        out.writeLong(0);
+    }
+
+    private void writeType(String[] type) throws IOException{
+        for(int i = 0; i < 6; i ++)
+            out.writeUTF(i < type.length && type[i] != null ? type[i] : "");
+    }
+
+    private int slot(long position){
+        return (int) (position & (capacity - 1));
+    }
+}
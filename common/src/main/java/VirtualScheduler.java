@@ -0,0 +1,133 @@
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Discrete-event scheduler with a virtual clock, replacing sleeps and timers in simulations.
+ *
+ * Tasks run one at a time on the thread calling run, in the order of their virtual due time.
+ * Tasks due at the same time run in the order they were scheduled. The clock jumps from one task
+ * to the next, so a scenario spanning minutes of virtual time runs as fast as its tasks.
+ * If all randomness of a simulation is drawn from getRandom, the same seed gives the same run.
+ *
+ * Not thread-safe, tasks should only be scheduled by the thread running the simulation.
+ */
+public class VirtualScheduler implements Executor {
+
+    private static class Event {
+        private long time;
+        private long sequence;
+        private Runnable task;
+
+        private Event(long time, long sequence, Runnable task){
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
+
+    private PriorityQueue<Event> events;
+
+    /**
+     * Current virtual time in milliseconds
+     */
+    private long now;
+
+    private long sequence;
+
+    private Random random;
+
+    /**
+     * Constructor
+     * @param seed seed of the random numbers of the simulation
+     */
+    public VirtualScheduler(long seed){
+        random = new Random(seed);
+        events = new PriorityQueue<Event>(64, new Comparator<Event>() {
+            public int compare(Event e1, Event e2) {
+                if(e1.time != e2.time)
+                    return Long.compare(e1.time, e2.time);
+                return Long.compare(e1.sequence, e2.sequence);
+            }
+        });
+    }
+
+    /**
+     * Run a task after a virtual delay.
+     * @param task task to run
+     * @param delay delay in milliseconds
+     */
+    public void schedule(Runnable task, long delay){
+        events.add(new Event(now + Math.max(0, delay), sequence ++, task));
+    }
+
+    /**
+     * Run a task at the current virtual time, after the tasks already due.
+     * @param task task to run
+     */
+    public void execute(Runnable task){
+        schedule(task, 0);
+    }
+
+    /**
+     * Advance the clock to the next task and run it.
+     * @return false if no task is left
+     */
+    public boolean step(){
+        Event event = events.poll();
+        if(event == null)
+            return false;
+
+        now = event.time;
+        event.task.run();
+        return true;
+    }
+
+    /**
+     * Run tasks until none is left.
+     * @return number of tasks run
+     */
+    public int run(){
+        int count = 0;
+        while(step())
+            count ++;
+        return count;
+    }
+
+    /**
+     * Run all tasks due up to a virtual time, then advance the clock to that time.
+     * @param time virtual time in milliseconds
+     * @return number of tasks run
+     */
+    public int runUntil(long time){
+        int count = 0;
+        while(!events.isEmpty() && events.peek().time <= time){
+            step();
+            count ++;
+        }
+        now = Math.max(now, time);
+        return count;
+    }
+
+    /**
+     * @return current virtual time in milliseconds
+     */
+    public long now(){
+        return now;
+    }
+
+    /**
+     * @return random numbers of the simulation
+     */
+    public Random getRandom(){
+        return random;
+    }
+
+    /**
+     * @return number of tasks waiting
+     */
+    public int size(){
+        return events.size();
+    }
+}